@@ -0,0 +1,548 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.AbstractList;
+import java.util.List;
+
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginLoader;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import com.comphenix.undyingsun.benchmark.Packet4UpdateTime;
+import com.comphenix.undyingsun.benchmark.SimulatedScheduler;
+import com.comphenix.undyingsun.benchmark.SimulatedWorld;
+import com.comphenix.undyingsun.benchmark.StandIns;
+import com.comphenix.undyingsun.metrics.LatencyHistogram;
+import com.comphenix.undyingsun.metrics.Metrics;
+import com.comphenix.undyingsun.metrics.PacketCounters;
+import com.comphenix.undyingsun.metrics.PacketCounters.Event;
+import com.comphenix.undyingsun.packets.SimulatedBackends;
+import com.comphenix.undyingsun.packets.TimeInterceptor;
+import com.comphenix.undyingsun.packets.TimeSetter;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+
+/**
+ * Simulates a server with many players and worlds, without starting a real server.
+ * <p>
+ * The plugin is enabled with stand-in Bukkit objects and a deterministic scheduler, and every simulated 
+ * tick advances the worlds, runs the scheduled tasks and sends a time packet to every player once per 
+ * second. The cost of every tick is measured on the simulated main thread, including the stand-ins. 
+ * Every clock in the plugin reads the simulated time, so the packet counts are the same on every run.
+ * <p>
+ * The process exits with a non-zero status if any of the given thresholds are exceeded, so a build can 
+ * fail on regressions. Usage:
+ * <pre>
+ * LoadSimulation [--players N] [--worlds M] [--ticks T] [--warmup W] [--backend setter|queued|pipeline|direct]
+ *                [--max-mean-micros X] [--max-p99-micros X] [--max-bytes-per-tick X]
+ * </pre>
+ * @author Kristian
+ */
+public class LoadSimulation {
+	/**
+	 * The number of ticks between each time packet, as in vanilla.
+	 */
+	private static final int PACKET_DELAY = 20;
+	
+	/**
+	 * Every simulated packet interceptor.
+	 * @author Kristian
+	 */
+	private enum Backend {
+		SETTER {
+			@Override
+			TimeInterceptor createInterceptor(Plugin plugin) {
+				return new TimeSetter(plugin);
+			}
+		},
+		QUEUED {
+			@Override
+			TimeInterceptor createInterceptor(Plugin plugin) {
+				return SimulatedBackends.newQueuedPackets(plugin, Packet4UpdateTime.class);
+			}
+		},
+		PIPELINE {
+			@Override
+			TimeInterceptor createInterceptor(Plugin plugin) {
+				return SimulatedBackends.newChannelPipeline(plugin, Packet4UpdateTime.class);
+			}
+		},
+		DIRECT {
+			@Override
+			TimeInterceptor createInterceptor(Plugin plugin) {
+				return SimulatedBackends.newDirect(plugin);
+			}
+		};
+		
+		abstract TimeInterceptor createInterceptor(Plugin plugin);
+	}
+	
+	/**
+	 * Represents the plugin, using the simulated time and the selected backend.
+	 * @author Kristian
+	 */
+	private static class SimulatedPlugin extends UndyingSunPlugin {
+		private final Backend backend;
+		private final Ticker ticker;
+		
+		public SimulatedPlugin(Backend backend, Ticker ticker) {
+			this.backend = backend;
+			this.ticker = ticker;
+		}
+		
+		@Override
+		TimeInterceptor createInterceptor() throws Exception {
+			return backend.createInterceptor(this);
+		}
+		
+		@Override
+		Ticker getTicker() {
+			return ticker;
+		}
+	}
+	
+	/**
+	 * Represents a packet queue that discards every packet, so it never grows.
+	 * @author Kristian
+	 */
+	private static class DiscardingQueue extends AbstractList<Object> {
+		@Override
+		public boolean add(Object element) {
+			return true;
+		}
+		
+		@Override
+		public Object get(int index) {
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+		
+		@Override
+		public int size() {
+			return 0;
+		}
+	}
+	
+	// Options
+	private int playerCount = 1000;
+	private int worldCount = 10;
+	private int tickCount = 6000;
+	private int warmupCount = 1200;
+	private Backend backend = Backend.DIRECT;
+	private double maxMeanMicros = -1;
+	private double maxP99Micros = -1;
+	private long maxBytesPerTick = -1;
+	
+	// Simulated server
+	private SimulatedScheduler scheduler;
+	private SimulatedWorld[] worlds;
+	private Player[] players;
+	private SimulatedPlugin plugin;
+	
+	// Queued packets of every player, for the current interceptor
+	private TimeInterceptor queuedInterceptor;
+	private List<List<Object>> queues;
+	private Packet4UpdateTime[] packets;
+	private final DiscardingQueue sink = new DiscardingQueue();
+	
+	// Embedded channel of every player, for the current interceptor
+	private TimeInterceptor channelInterceptor;
+	private List<EmbeddedChannel> channels;
+	
+	// Packets that were sent without interception
+	private long passthrough;
+	
+	public static void main(String[] args) throws Exception {
+		LoadSimulation simulation = new LoadSimulation();
+		
+		if (!simulation.parse(args)) {
+			System.err.println("Usage: LoadSimulation [--players N] [--worlds M] [--ticks T] [--warmup W] " +
+					"[--backend setter|queued|pipeline|direct] [--max-mean-micros X] [--max-p99-micros X] [--max-bytes-per-tick X]");
+			System.exit(2);
+		}
+		System.exit(simulation.run() ? 0 : 1);
+	}
+	
+	/**
+	 * Parse the command line options.
+	 * @param args - the options.
+	 * @return TRUE if every option was valid, FALSE otherwise.
+	 */
+	private boolean parse(String[] args) {
+		try {
+			for (int i = 0; i < args.length; i += 2) {
+				String name = args[i];
+				String value = i + 1 < args.length ? args[i + 1] : null;
+				
+				if (value == null)
+					return false;
+				if ("--players".equals(name))
+					playerCount = Integer.parseInt(value);
+				else if ("--worlds".equals(name))
+					worldCount = Integer.parseInt(value);
+				else if ("--ticks".equals(name))
+					tickCount = Integer.parseInt(value);
+				else if ("--warmup".equals(name))
+					warmupCount = Integer.parseInt(value);
+				else if ("--backend".equals(name))
+					backend = Backend.valueOf(value.toUpperCase());
+				else if ("--max-mean-micros".equals(name))
+					maxMeanMicros = Double.parseDouble(value);
+				else if ("--max-p99-micros".equals(name))
+					maxP99Micros = Double.parseDouble(value);
+				else if ("--max-bytes-per-tick".equals(name))
+					maxBytesPerTick = Long.parseLong(value);
+				else
+					return false;
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+		return playerCount >= 0 && worldCount > 0 && tickCount > 0 && warmupCount >= 0;
+	}
+	
+	/**
+	 * Run the simulation and print the results.
+	 * @return TRUE if every threshold was met, FALSE otherwise.
+	 * @throws Exception If the simulation failed.
+	 */
+	private boolean run() throws Exception {
+		File dataFolder = createTempFolder();
+		
+		try {
+			setup(dataFolder);
+			
+			// Let the JIT compiler catch up
+			for (int i = 0; i < warmupCount; i++) {
+				tick();
+			}
+			return measure();
+			
+		} finally {
+			if (plugin != null)
+				plugin.onDisable();
+			closeChannels();
+			deleteFolder(dataFolder);
+		}
+	}
+	
+	/**
+	 * Construct every world and player, and enable the plugin.
+	 * @param dataFolder - the data folder of the plugin.
+	 * @throws Exception If the plugin could not be enabled.
+	 */
+	private void setup(File dataFolder) throws Exception {
+		StandIns.setPrimaryThread(true);
+		scheduler = new SimulatedScheduler();
+		StandIns.setScheduler(scheduler.getScheduler());
+		
+		List<World> loaded = Lists.newArrayList();
+		worlds = new SimulatedWorld[worldCount];
+		
+		for (int i = 0; i < worlds.length; i++) {
+			// Spread the worlds across the day
+			worlds[i] = new SimulatedWorld("world" + i, i * 1000L);
+			loaded.add(worlds[i].getWorld());
+		}
+		players = new Player[playerCount];
+		packets = new Packet4UpdateTime[playerCount];
+		
+		for (int i = 0; i < players.length; i++) {
+			players[i] = StandIns.newPlayer("Player" + i, loaded.get(i % loaded.size()));
+			packets[i] = new Packet4UpdateTime(0, 0);
+		}
+		StandIns.setWorlds(loaded);
+		StandIns.setOnlinePlayers(players);
+		
+		plugin = new SimulatedPlugin(backend, scheduler.getTicker());
+		initialize(plugin, dataFolder);
+		plugin.onEnable();
+	}
+	
+	/**
+	 * Simulate the measured ticks and print the results.
+	 * @return TRUE if every threshold was met, FALSE otherwise.
+	 */
+	private boolean measure() {
+		LatencyHistogram tickCost = new LatencyHistogram();
+		Metrics metrics = plugin.getMetrics();
+		long[] packetsBefore = getPacketCounts(metrics);
+		long setTimeBefore = getSetTimeCalls();
+		long playerTimeBefore = metrics.getPlayerTimeCalls();
+		long passthroughBefore = passthrough;
+		long allocatedBefore = getAllocatedBytes();
+		long maxCost = 0;
+		
+		for (int i = 0; i < tickCount; i++) {
+			long start = System.nanoTime();
+			tick();
+			long cost = System.nanoTime() - start;
+			
+			tickCost.record(cost);
+			maxCost = Math.max(maxCost, cost);
+		}
+		long allocated = getAllocatedBytes() - allocatedBefore;
+		long[] packetsAfter = getPacketCounts(metrics);
+		
+		// Summarize
+		double meanMicros = tickCost.getMean() / 1000.0;
+		double p99Micros = tickCost.getPercentile(0.99) / 1000.0;
+		long bytesPerTick = allocatedBefore >= 0 ? allocated / tickCount : -1;
+		
+		System.out.println(String.format("Simulated %d players in %d worlds for %d ticks with the %s backend",
+				playerCount, worldCount, tickCount, backend.name().toLowerCase()));
+		System.out.println(String.format("Tick cost: mean %.1f us, p99 < %.1f us, max %.1f us", 
+				meanMicros, p99Micros, maxCost / 1000.0));
+		System.out.println("Allocated: " + (bytesPerTick >= 0 ? bytesPerTick + " bytes per tick" : "unknown"));
+		System.out.println(String.format("Packets: %d seen, %d rewritten, %d suppressed, %d failed, %d not intercepted", 
+				getDifference(packetsBefore, packetsAfter, Event.SEEN), 
+				getDifference(packetsBefore, packetsAfter, Event.REWRITTEN), 
+				getDifference(packetsBefore, packetsAfter, Event.SUPPRESSED), 
+				getDifference(packetsBefore, packetsAfter, Event.FAILED), 
+				passthrough - passthroughBefore));
+		System.out.println("Server clock: " + (getSetTimeCalls() - setTimeBefore) + " setTime calls, " + 
+				(metrics.getPlayerTimeCalls() - playerTimeBefore) + " setPlayerTime calls");
+		
+		// Check every threshold
+		boolean success = true;
+		success &= checkThreshold("mean tick cost (us)", meanMicros, maxMeanMicros);
+		success &= checkThreshold("p99 tick cost (us)", p99Micros, maxP99Micros);
+		success &= checkThreshold("bytes per tick", bytesPerTick, maxBytesPerTick);
+		return success;
+	}
+	
+	/**
+	 * Simulate a single tick.
+	 */
+	private void tick() {
+		for (SimulatedWorld world : worlds) {
+			world.tick();
+		}
+		scheduler.tick();
+		
+		if (scheduler.getCurrentTick() % PACKET_DELAY == 0) {
+			try {
+				sendTimePackets();
+			} catch (Exception e) {
+				throw new RuntimeException("Cannot send time packets.", e);
+			}
+		}
+	}
+	
+	/**
+	 * Send a time packet to every player, as the server does once per second.
+	 * @throws Exception If a listener failed.
+	 */
+	private void sendTimePackets() throws Exception {
+		TimeInterceptor current = plugin.getInterceptor();
+		
+		for (int i = 0; i < players.length; i++) {
+			SimulatedWorld world = worlds[i % worlds.length];
+			
+			if (current instanceof SimulatedBackends.Direct) {
+				((SimulatedBackends.Direct) current).send(players[i], world.getAge(), world.getTime());
+			} else if (current != null && backend == Backend.QUEUED) {
+				packets[i].a = world.getAge();
+				packets[i].b = world.getTime();
+				getQueues(current).get(i).add(packets[i]);
+			} else if (current != null && backend == Backend.PIPELINE) {
+				EmbeddedChannel channel = getChannels(current).get(i);
+				packets[i].a = world.getAge();
+				packets[i].b = world.getTime();
+				channel.writeOutbound(packets[i]);
+				
+				// Discard the written packet, so the channel never grows
+				channel.readOutbound();
+			} else {
+				// The time setter changes the time of each player instead
+				passthrough++;
+			}
+		}
+	}
+	
+	/**
+	 * Retrieve the packet queue of every player, injected by the given interceptor.
+	 * @param current - the current interceptor.
+	 * @return The packet queues.
+	 */
+	private List<List<Object>> getQueues(TimeInterceptor current) {
+		if (queuedInterceptor != current) {
+			queues = Lists.newArrayListWithCapacity(players.length);
+			
+			for (Player player : players) {
+				queues.add(SimulatedBackends.newQueue(current, player, sink));
+			}
+			queuedInterceptor = current;
+		}
+		return queues;
+	}
+	
+	/**
+	 * Retrieve the embedded channel of every player, injected by the given interceptor.
+	 * @param current - the current interceptor.
+	 * @return The channels.
+	 */
+	private List<EmbeddedChannel> getChannels(TimeInterceptor current) {
+		if (channelInterceptor != current) {
+			closeChannels();
+			channels = Lists.newArrayListWithCapacity(players.length);
+			
+			for (Player player : players) {
+				EmbeddedChannel channel = new EmbeddedChannel();
+				SimulatedBackends.injectChannel(current, player, channel);
+				channels.add(channel);
+			}
+			channelInterceptor = current;
+		}
+		return channels;
+	}
+	
+	/**
+	 * Close the embedded channel of every player, if any.
+	 */
+	private void closeChannels() {
+		if (channels != null) {
+			for (EmbeddedChannel channel : channels) {
+				channel.finish();
+			}
+			channels = null;
+		}
+	}
+	
+	/**
+	 * Retrieve the number of packets seen, rewritten, suppressed and failed by every backend.
+	 * @param metrics - the performance counters.
+	 * @return The number of packets of each event.
+	 */
+	private long[] getPacketCounts(Metrics metrics) {
+		long[] result = new long[Event.values().length];
+		
+		for (PacketCounters counters : metrics.getPacketCounters()) {
+			for (Event event : Event.values()) {
+				result[event.ordinal()] += counters.get(event);
+			}
+		}
+		return result;
+	}
+	
+	private static long getDifference(long[] before, long[] after, Event event) {
+		return after[event.ordinal()] - before[event.ordinal()];
+	}
+	
+	private long getSetTimeCalls() {
+		long result = 0;
+		
+		for (SimulatedWorld world : worlds) {
+			result += world.getSetTimeCalls();
+		}
+		return result;
+	}
+	
+	/**
+	 * Retrieve the number of bytes allocated by the current thread.
+	 * @return The number of bytes, or -1 if not supported by the JVM.
+	 */
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean extended = (com.sun.management.ThreadMXBean) bean;
+			
+			if (extended.isThreadAllocatedMemorySupported() && extended.isThreadAllocatedMemoryEnabled())
+				return extended.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+	
+	/**
+	 * Determine if the given value is within its threshold, and print a message if it is not.
+	 * @param name - the name of the value.
+	 * @param value - the measured value.
+	 * @param threshold - the maximum value, or negative to disable the check.
+	 * @return TRUE if the value is within its threshold, FALSE otherwise.
+	 */
+	private static boolean checkThreshold(String name, double value, double threshold) {
+		if (threshold >= 0 && value > threshold) {
+			System.out.println("FAILED: " + name + " of " + value + " exceeds " + threshold);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Initialize the given plugin as the plugin loader would.
+	 * @param plugin - the plugin.
+	 * @param dataFolder - the data folder of the plugin.
+	 * @throws Exception If the plugin cannot be initialized.
+	 */
+	private static void initialize(JavaPlugin plugin, File dataFolder) throws Exception {
+		InputStream input = UndyingSunPlugin.class.getResourceAsStream("/plugin.yml");
+		PluginDescriptionFile description;
+		
+		try {
+			description = new PluginDescriptionFile(input);
+		} finally {
+			input.close();
+		}
+		
+		Method initialize = JavaPlugin.class.getDeclaredMethod("initialize", PluginLoader.class, Server.class, 
+				PluginDescriptionFile.class, File.class, File.class, ClassLoader.class);
+		initialize.setAccessible(true);
+		initialize.invoke(plugin, StandIns.newProxy(PluginLoader.class, new StandIns.Handler()), 
+				StandIns.getServer(), description, dataFolder, new File(dataFolder, "UndyingSun.jar"), 
+				LoadSimulation.class.getClassLoader());
+		
+		// Commands are normally registered by the plugin manager
+		Constructor<PluginCommand> constructor = PluginCommand.class.getDeclaredConstructor(String.class, Plugin.class);
+		constructor.setAccessible(true);
+		StandIns.registerCommand(constructor.newInstance(CommandUndying.NAME, plugin));
+	}
+	
+	private static File createTempFolder() throws IOException {
+		File folder = File.createTempFile("undyingsun", "");
+		
+		if (!folder.delete() || !folder.mkdir())
+			throw new IOException("Cannot create temporary folder " + folder);
+		return folder;
+	}
+	
+	private static void deleteFolder(File folder) {
+		File[] files = folder.listFiles();
+		
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+}
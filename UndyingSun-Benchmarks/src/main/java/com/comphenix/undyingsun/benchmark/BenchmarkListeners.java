@@ -0,0 +1,53 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.benchmark;
+
+import com.comphenix.undyingsun.packets.TimeContext;
+import com.comphenix.undyingsun.packets.TimeInterceptor.AsyncTimeListener;
+import com.comphenix.undyingsun.packets.TimeInterceptor.TimeListener;
+import com.comphenix.undyingsun.temporal.Clock;
+
+/**
+ * Time listeners that mirror the work done by the plugin itself.
+ * @author Kristian
+ */
+public class BenchmarkListeners {
+	/**
+	 * Construct a listener that replaces the relative time with the output of a clock.
+	 * @param clock - the clock.
+	 * @param async - whether or not the listener should be marked as thread-safe.
+	 * @return The listener.
+	 */
+	public static TimeListener fromClock(final Clock clock, boolean async) {
+		if (async) {
+			return new AsyncTimeListener() {
+				@Override
+				public void onTimeSending(TimeContext context) {
+					context.setRelativeTime(clock.get(context.getTotalTime()));
+				}
+			};
+		} else {
+			return new TimeListener() {
+				@Override
+				public void onTimeSending(TimeContext context) {
+					context.setRelativeTime(clock.get(context.getTotalTime()));
+				}
+			};
+		}
+	}
+}
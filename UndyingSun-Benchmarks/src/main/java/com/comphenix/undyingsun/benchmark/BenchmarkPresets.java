@@ -0,0 +1,41 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.benchmark;
+
+import com.comphenix.undyingsun.temporal.DaylightPreset;
+
+/**
+ * Daylight presets used as benchmark parameters.
+ * @author Kristian
+ */
+public class BenchmarkPresets {
+	/**
+	 * Retrieve a preset by name.
+	 * @param name - either "default", "long-night" or "day-only".
+	 * @return The corresponding preset.
+	 */
+	public static DaylightPreset fromName(String name) {
+		if ("default".equals(name))
+			return DaylightPreset.defaultPreset();
+		if ("long-night".equals(name))
+			return DaylightPreset.newPreset(2, 1, 8, 1);
+		if ("day-only".equals(name))
+			return DaylightPreset.newPreset(1, 0, 0, 0);
+		throw new IllegalArgumentException("Unknown preset: " + name);
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run every benchmark with the GC profiler, so the allocation rate is reported alongside each score.
+ * <p>
+ * Accepts the standard JMH command line options, such as a benchmark filter.
+ * @author Kristian
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder().
+			parent(new CommandLineOptions(args)).
+			addProfiler(GCProfiler.class).
+			build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * A deterministic stand-in for the Bukkit scheduler.
+ * <p>
+ * Time only advances when {@link #tick()} is called, and every task - including asynchronous tasks - is 
+ * executed on the calling thread in the order it was scheduled. The current tick is also exposed as a 
+ * {@link Ticker}, so every clock in the plugin can be driven by simulated time.
+ * @author Kristian
+ */
+public class SimulatedScheduler {
+	/**
+	 * The number of nanoseconds in a game tick.
+	 */
+	public static final long NANOSECONDS_PER_TICK = 50000000L;
+	
+	/**
+	 * Represents a scheduled task.
+	 * @author Kristian
+	 */
+	private static class Task {
+		final int id;
+		final Runnable runnable;
+		final long period;
+		long nextTick;
+		boolean cancelled;
+		
+		public Task(int id, Runnable runnable, long nextTick, long period) {
+			this.id = id;
+			this.runnable = runnable;
+			this.nextTick = nextTick;
+			this.period = period;
+		}
+	}
+	
+	// Every pending task, in the order they were scheduled
+	private final List<Task> tasks = new ArrayList<Task>();
+	private final BukkitScheduler scheduler;
+	private final Ticker ticker;
+	
+	private long currentTick;
+	private int nextId = 1;
+	
+	public SimulatedScheduler() {
+		this.scheduler = StandIns.newProxy(BukkitScheduler.class, new StandIns.Handler() {
+			@Override
+			protected Object handle(Object proxy, String method, Object[] args) {
+				return handleScheduler(method, args);
+			}
+		});
+		this.ticker = new Ticker() {
+			@Override
+			public long read() {
+				return currentTick * NANOSECONDS_PER_TICK;
+			}
+		};
+	}
+	
+	/**
+	 * Retrieve the Bukkit scheduler view of this scheduler.
+	 * @return The Bukkit scheduler.
+	 */
+	public BukkitScheduler getScheduler() {
+		return scheduler;
+	}
+	
+	/**
+	 * Retrieve a ticker that reports the simulated time.
+	 * @return The ticker.
+	 */
+	public Ticker getTicker() {
+		return ticker;
+	}
+	
+	/**
+	 * Retrieve the number of ticks that have been simulated.
+	 * @return The current tick.
+	 */
+	public long getCurrentTick() {
+		return currentTick;
+	}
+	
+	/**
+	 * Advance the simulated time by one tick, and execute every task that is due.
+	 * <p>
+	 * Tasks scheduled while ticking are executed in the next tick at the earliest. This does not allocate.
+	 */
+	public void tick() {
+		currentTick++;
+		
+		// Tasks may be added while we iterate
+		for (int i = 0; i < tasks.size(); i++) {
+			Task task = tasks.get(i);
+			
+			if (!task.cancelled && task.nextTick <= currentTick) {
+				task.runnable.run();
+				
+				if (task.period > 0)
+					task.nextTick = currentTick + task.period;
+				else
+					task.cancelled = true;
+			}
+		}
+		removeCancelled();
+	}
+	
+	/**
+	 * Remove every cancelled task, while retaining the order of the others.
+	 */
+	private void removeCancelled() {
+		int size = 0;
+		
+		for (int i = 0; i < tasks.size(); i++) {
+			Task task = tasks.get(i);
+			
+			if (!task.cancelled)
+				tasks.set(size++, task);
+		}
+		while (tasks.size() > size) {
+			tasks.remove(tasks.size() - 1);
+		}
+	}
+	
+	/**
+	 * Schedule a new task.
+	 * @param runnable - the task to run.
+	 * @param delay - the number of ticks to wait.
+	 * @param period - the number of ticks between each execution, or non-positive to only run once.
+	 * @return The task.
+	 */
+	private Task schedule(Runnable runnable, long delay, long period) {
+		// A delay of zero is executed in the next tick
+		Task task = new Task(nextId++, runnable, currentTick + Math.max(1, delay), period);
+		tasks.add(task);
+		return task;
+	}
+	
+	/**
+	 * Cancel the task with the given ID.
+	 * @param id - the task ID.
+	 */
+	private void cancel(int id) {
+		for (Task task : tasks) {
+			if (task.id == id)
+				task.cancelled = true;
+		}
+	}
+	
+	private Object handleScheduler(String method, Object[] args) {
+		if ("scheduleSyncDelayedTask".equals(method) || "scheduleAsyncDelayedTask".equals(method)) {
+			return schedule((Runnable) args[1], args.length > 2 ? (Long) args[2] : 0, 0).id;
+		}
+		if ("scheduleSyncRepeatingTask".equals(method) || "scheduleAsyncRepeatingTask".equals(method)) {
+			return schedule((Runnable) args[1], (Long) args[2], (Long) args[3]).id;
+		}
+		if ("runTask".equals(method) || "runTaskAsynchronously".equals(method)) {
+			return toBukkitTask(schedule((Runnable) args[1], 0, 0));
+		}
+		if ("runTaskLater".equals(method) || "runTaskLaterAsynchronously".equals(method)) {
+			return toBukkitTask(schedule((Runnable) args[1], (Long) args[2], 0));
+		}
+		if ("runTaskTimer".equals(method) || "runTaskTimerAsynchronously".equals(method)) {
+			return toBukkitTask(schedule((Runnable) args[1], (Long) args[2], (Long) args[3]));
+		}
+		if ("callSyncMethod".equals(method)) {
+			return invokeSync((Callable<?>) args[1]);
+		}
+		if ("cancelTask".equals(method)) {
+			cancel((Integer) args[0]);
+		} else if ("cancelTasks".equals(method) || "cancelAllTasks".equals(method)) {
+			for (Task task : tasks)
+				task.cancelled = true;
+		}
+		return null;
+	}
+	
+	private BukkitTask toBukkitTask(final Task task) {
+		return StandIns.newProxy(BukkitTask.class, new StandIns.Handler() {
+			@Override
+			protected Object handle(Object proxy, String method, Object[] args) {
+				if ("getTaskId".equals(method))
+					return task.id;
+				if ("cancel".equals(method))
+					task.cancelled = true;
+				return null;
+			}
+		});
+	}
+	
+	private static Future<Object> invokeSync(Callable<?> callable) {
+		// The caller is always the simulated main thread
+		try {
+			return Futures.<Object>immediateFuture(callable.call());
+		} catch (Exception e) {
+			return Futures.immediateFailedFuture(e);
+		}
+	}
+}
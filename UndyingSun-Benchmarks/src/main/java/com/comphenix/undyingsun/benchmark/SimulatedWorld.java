@@ -0,0 +1,122 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.benchmark;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import org.bukkit.World;
+import org.bukkit.World.Environment;
+
+/**
+ * A stand-in world whose time advances like a vanilla world with the daylight cycle enabled.
+ * <p>
+ * As in CraftBukkit, the full time reported to plugins is the time of day without the modulo, while the 
+ * age of the world keeps increasing regardless of the time of day.
+ * @author Kristian
+ */
+public class SimulatedWorld extends StandIns.Handler {
+	private final String name;
+	private final UUID id;
+	private final World world;
+	
+	// Only accessed by the simulated main thread
+	private long age;
+	private long dayTime;
+	private long setTimeCalls;
+	
+	/**
+	 * Construct a new simulated world.
+	 * @param name - the name of the world.
+	 * @param age - the initial age of the world, in ticks.
+	 */
+	public SimulatedWorld(String name, long age) {
+		this.name = name;
+		this.id = UUID.nameUUIDFromBytes(name.getBytes());
+		this.age = age;
+		this.dayTime = age;
+		this.world = StandIns.newProxy(World.class, this);
+	}
+	
+	/**
+	 * Retrieve the Bukkit world view of this world.
+	 * @return The Bukkit world.
+	 */
+	public World getWorld() {
+		return world;
+	}
+	
+	/**
+	 * Advance the time of this world by one tick.
+	 */
+	public void tick() {
+		age++;
+		dayTime++;
+	}
+	
+	/**
+	 * Retrieve the age of the world, as it would be sent to the clients.
+	 * @return The age in ticks.
+	 */
+	public long getAge() {
+		return age;
+	}
+	
+	/**
+	 * Retrieve the time of day, as it would be sent to the clients.
+	 * @return The time of day.
+	 */
+	public long getTime() {
+		return dayTime % 24000;
+	}
+	
+	/**
+	 * Retrieve the number of times the time of this world has been set.
+	 * @return The number of calls.
+	 */
+	public long getSetTimeCalls() {
+		return setTimeCalls;
+	}
+	
+	@Override
+	protected Object handle(Object proxy, String method, Object[] args) {
+		if ("getName".equals(method))
+			return name;
+		if ("getUID".equals(method))
+			return id;
+		if ("getEnvironment".equals(method))
+			return Environment.NORMAL;
+		if ("getFullTime".equals(method))
+			return dayTime;
+		if ("getTime".equals(method))
+			return getTime();
+		if ("getPlayers".equals(method))
+			return Collections.emptyList();
+		
+		if ("setTime".equals(method)) {
+			// Same as CraftWorld - always move forward
+			long margin = ((Long) args[0] - dayTime) % 24000;
+			dayTime += margin < 0 ? margin + 24000 : margin;
+			setTimeCalls++;
+		} else if ("setFullTime".equals(method)) {
+			dayTime = (Long) args[0];
+			setTimeCalls++;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Primitives;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * Lightweight stand-ins for the Bukkit objects touched by the per-packet paths.
+ * <p>
+ * Every stand-in is a dynamic proxy. Methods that are not explicitly handled return zero, false or NULL.
+ * @author Kristian
+ */
+public class StandIns {
+	// Whether or not the current thread should be considered the main thread
+	private static final ThreadLocal<Boolean> PRIMARY_THREAD = new ThreadLocal<Boolean>() {
+		@Override
+		protected Boolean initialValue() {
+			return false;
+		}
+	};
+	
+	// The simulated content of the server - replaced by simulations
+	private static volatile BukkitScheduler scheduler = createScheduler();
+	private static volatile List<World> worlds = Collections.emptyList();
+	private static volatile Player[] onlinePlayers = new Player[0];
+	private static final Map<String, PluginCommand> commands = Maps.newConcurrentMap();
+	
+	private static final Server SERVER = createServer();
+	private static final Plugin PLUGIN = createPlugin();
+	
+	static {
+		Bukkit.setServer(SERVER);
+	}
+	
+	/**
+	 * Retrieve the stand-in server, which is also registered with {@link Bukkit}.
+	 * @return The server.
+	 */
+	public static Server getServer() {
+		return SERVER;
+	}
+	
+	/**
+	 * Retrieve a stand-in plugin that belongs to the stand-in server.
+	 * @return The plugin.
+	 */
+	public static Plugin getPlugin() {
+		return PLUGIN;
+	}
+	
+	/**
+	 * Set whether or not the current thread will be reported as the main thread.
+	 * @param primary - TRUE if it is the main thread, FALSE otherwise.
+	 */
+	public static void setPrimaryThread(boolean primary) {
+		PRIMARY_THREAD.set(primary);
+	}
+	
+	/**
+	 * Set the scheduler returned by the stand-in server.
+	 * @param scheduler - the new scheduler.
+	 */
+	public static void setScheduler(BukkitScheduler scheduler) {
+		StandIns.scheduler = scheduler;
+	}
+	
+	/**
+	 * Set the worlds reported by the stand-in server.
+	 * @param worlds - the loaded worlds.
+	 */
+	public static void setWorlds(List<World> worlds) {
+		StandIns.worlds = ImmutableList.copyOf(worlds);
+	}
+	
+	/**
+	 * Set the players reported by the stand-in server.
+	 * @param players - the online players.
+	 */
+	public static void setOnlinePlayers(Player[] players) {
+		StandIns.onlinePlayers = players.clone();
+	}
+	
+	/**
+	 * Register a command that will be returned by the stand-in server.
+	 * @param command - the command.
+	 */
+	public static void registerCommand(PluginCommand command) {
+		commands.put(command.getName().toLowerCase(), command);
+	}
+	
+	/**
+	 * Construct a new stand-in world.
+	 * @param name - the world name.
+	 * @param fullTime - the full time of the world.
+	 * @return The stand-in world.
+	 */
+	public static World newWorld(final String name, final long fullTime) {
+		final UUID id = UUID.randomUUID();
+		
+		return newProxy(World.class, new Handler() {
+			@Override
+			protected Object handle(Object proxy, String method, Object[] args) {
+				if ("getName".equals(method))
+					return name;
+				if ("getUID".equals(method))
+					return id;
+				if ("getFullTime".equals(method))
+					return fullTime;
+				if ("getTime".equals(method))
+					return fullTime % 24000;
+				return super.handle(proxy, method, args);
+			}
+		});
+	}
+	
+	/**
+	 * Construct a new stand-in player.
+	 * @param name - the name of the player.
+	 * @param world - the world the player is in.
+	 * @return The stand-in player.
+	 */
+	public static Player newPlayer(final String name, final World world) {
+		final UUID id = UUID.nameUUIDFromBytes(name.getBytes());
+		
+		return newProxy(Player.class, new Handler() {
+			@Override
+			protected Object handle(Object proxy, String method, Object[] args) {
+				if ("getName".equals(method))
+					return name;
+				if ("getUniqueId".equals(method))
+					return id;
+				if ("getWorld".equals(method))
+					return world;
+				if ("isOnline".equals(method))
+					return true;
+				return super.handle(proxy, method, args);
+			}
+		});
+	}
+	
+	private static BukkitScheduler createScheduler() {
+		return newProxy(BukkitScheduler.class, new Handler() {
+			@Override
+			protected Object handle(Object proxy, String method, Object[] args) {
+				// Pretend the main thread executes the call immediately
+				if ("callSyncMethod".equals(method)) {
+					return invokeSync((Callable<?>) args[1]);
+				}
+				return super.handle(proxy, method, args);
+			}
+		});
+	}
+	
+	private static Server createServer() {
+		final PluginManager manager = newProxy(PluginManager.class, new Handler());
+		final Logger logger = Logger.getLogger("UndyingSun-Benchmarks");
+		
+		return newProxy(Server.class, new Handler() {
+			@Override
+			protected Object handle(Object proxy, String method, Object[] args) {
+				if ("isPrimaryThread".equals(method))
+					return PRIMARY_THREAD.get();
+				if ("getScheduler".equals(method))
+					return scheduler;
+				if ("getPluginManager".equals(method))
+					return manager;
+				if ("getLogger".equals(method))
+					return logger;
+				if ("getName".equals(method) || "getVersion".equals(method) || "getBukkitVersion".equals(method))
+					return "StandIn";
+				if ("getWorlds".equals(method))
+					return worlds;
+				if ("getOnlinePlayers".equals(method))
+					return onlinePlayers.clone();
+				if ("getPluginCommand".equals(method))
+					return commands.get(((String) args[0]).toLowerCase());
+				return super.handle(proxy, method, args);
+			}
+		});
+	}
+	
+	private static Plugin createPlugin() {
+		return newProxy(Plugin.class, new Handler() {
+			@Override
+			protected Object handle(Object proxy, String method, Object[] args) {
+				if ("getServer".equals(method))
+					return SERVER;
+				if ("getLogger".equals(method))
+					return SERVER.getLogger();
+				if ("getName".equals(method))
+					return "UndyingSun";
+				if ("isEnabled".equals(method))
+					return true;
+				return super.handle(proxy, method, args);
+			}
+		});
+	}
+	
+	private static Future<Object> invokeSync(Callable<?> callable) {
+		try {
+			return Futures.<Object>immediateFuture(callable.call());
+		} catch (Exception e) {
+			return Futures.immediateFailedFuture(e);
+		}
+	}
+	
+	/**
+	 * Construct a new dynamic proxy of the given interface.
+	 * @param type - the interface.
+	 * @param handler - the method handler.
+	 * @return The proxy.
+	 */
+	public static <T> T newProxy(Class<T> type, Handler handler) {
+		return type.cast(Proxy.newProxyInstance(StandIns.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+	
+	/**
+	 * Represents a proxy handler that compares by identity and returns default values.
+	 * @author Kristian
+	 */
+	public static class Handler implements InvocationHandler {
+		@Override
+		public final Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			
+			if ("equals".equals(name) && args != null && args.length == 1)
+				return proxy == args[0];
+			if ("hashCode".equals(name) && args == null)
+				return System.identityHashCode(proxy);
+			if ("toString".equals(name) && args == null)
+				return "StandIn[" + method.getDeclaringClass().getSimpleName() + "@" + 
+						Integer.toHexString(System.identityHashCode(proxy)) + "]";
+			
+			Object result = handle(proxy, name, args);
+			
+			// Default values for primitives
+			if (result == null && method.getReturnType().isPrimitive()) {
+				return defaultValue(method.getReturnType());
+			}
+			return result;
+		}
+		
+		/**
+		 * Handle the given method invocation.
+		 * @param proxy - the proxy instance.
+		 * @param method - the method name.
+		 * @param args - the arguments, or NULL.
+		 * @return The return value, or NULL for the default value.
+		 */
+		protected Object handle(Object proxy, String method, Object[] args) {
+			return null;
+		}
+		
+		private static Object defaultValue(Class<?> type) {
+			if (type == boolean.class)
+				return false;
+			if (type == void.class)
+				return null;
+			if (type == char.class)
+				return (char) 0;
+			// Every numeric primitive
+			Class<?> wrapper = Primitives.wrap(type);
+			
+			if (wrapper == Long.class)
+				return 0L;
+			if (wrapper == Double.class)
+				return 0.0;
+			if (wrapper == Float.class)
+				return 0.0f;
+			if (wrapper == Short.class)
+				return (short) 0;
+			if (wrapper == Byte.class)
+				return (byte) 0;
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+package com.comphenix.undyingsun.packets;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import com.comphenix.undyingsun.benchmark.BenchmarkListeners;
+import com.comphenix.undyingsun.benchmark.Packet4UpdateTime;
+import com.comphenix.undyingsun.benchmark.StandIns;
+import com.comphenix.undyingsun.players.PlayerSlots;
+import com.comphenix.undyingsun.temporal.Clock;
+import com.comphenix.undyingsun.temporal.DaylightPreset;
+import com.comphenix.undyingsun.temporal.TimeOfDay;
+
+/**
+ * Drives the channel pipeline interceptor through an embedded Netty channel.
+ * <p>
+ * The process exits with a non-zero status if the handler does not rewrite time packets in place, 
+ * does not drop suppressed packets, does not release players whose channel has been closed, or cannot 
+ * replace the handler of a closed interceptor that has not been removed yet.
+ * @author Kristian
+ */
+public class ChannelPipelineCheck {
+	/**
+	 * The time every packet is rewritten to.
+	 */
+	private static final int REWRITTEN_TIME = TimeOfDay.NOON.getGameTick();
+	
+	private final Plugin plugin = StandIns.getPlugin();
+	private final World world = StandIns.newWorld("world", 0);
+	
+	private boolean success = true;
+	
+	public static void main(String[] args) throws Exception {
+		ChannelPipelineCheck check = new ChannelPipelineCheck();
+		check.checkRewrite();
+		check.checkSuppression();
+		check.checkReconnect();
+		check.checkReinstall();
+		
+		System.out.println(check.success ? "Channel pipeline checks passed." : "Channel pipeline checks FAILED.");
+		System.exit(check.success ? 0 : 1);
+	}
+	
+	/**
+	 * Check that time packets are rewritten in place, and other packets are left alone.
+	 */
+	private void checkRewrite() {
+		TimeInterceptor interceptor = createInterceptor();
+		EmbeddedChannel channel = new EmbeddedChannel();
+		SimulatedBackends.injectChannel(interceptor, StandIns.newPlayer("Rewrite", world), channel);
+		
+		Packet4UpdateTime packet = new Packet4UpdateTime(100, 100);
+		String other = "other";
+		channel.writeOutbound(packet, other);
+		
+		Object first = channel.readOutbound();
+		check("time packet is sent", first == packet);
+		check("time packet is rewritten", packet.b == REWRITTEN_TIME);
+		check("total time is preserved", packet.a == 100);
+		check("other packets are sent", channel.readOutbound() == other);
+		
+		channel.finish();
+		interceptor.close();
+	}
+	
+	/**
+	 * Check that packets the client can predict are dropped.
+	 */
+	private void checkSuppression() {
+		TimeInterceptor interceptor = createInterceptor();
+		PlayerSlots slots = new PlayerSlots(plugin);
+		Player player = StandIns.newPlayer("Suppress", world);
+		EmbeddedChannel channel = new EmbeddedChannel();
+		
+		slots.assign(player);
+		interceptor.setSuppressor(new PacketSuppressor(plugin, slots, 0));
+		SimulatedBackends.injectChannel(interceptor, player, channel);
+		
+		// The second packet carries the same time in the same tick
+		channel.writeOutbound(new Packet4UpdateTime(0, 0));
+		channel.writeOutbound(new Packet4UpdateTime(0, 0));
+		
+		check("first packet is sent", channel.readOutbound() != null);
+		check("redundant packet is dropped", channel.readOutbound() == null);
+		
+		channel.finish();
+		interceptor.close();
+		slots.close();
+	}
+	
+	/**
+	 * Check that a player can be injected again after losing its connection without quitting.
+	 */
+	private void checkReconnect() {
+		TimeInterceptor interceptor = createInterceptor();
+		EmbeddedChannel first = new EmbeddedChannel();
+		EmbeddedChannel second = new EmbeddedChannel();
+		EmbeddedChannel third = new EmbeddedChannel();
+		ChannelHandler handler = SimulatedBackends.injectChannel(interceptor, StandIns.newPlayer("Reconnect", world), first);
+		
+		// A new session of the same player, while the first channel is still open
+		try {
+			SimulatedBackends.injectChannel(interceptor, StandIns.newPlayer("Reconnect", world), second);
+			first.runPendingTasks();
+			check("stale handler is removed", !first.pipeline().toMap().containsValue(handler));
+		} catch (IllegalArgumentException e) {
+			check("stale session is replaced: " + e.getMessage(), false);
+		}
+		
+		// The channel is closed before the quit event
+		second.close();
+		second.runPendingTasks();
+		
+		try {
+			SimulatedBackends.injectChannel(interceptor, StandIns.newPlayer("Reconnect", world), third);
+		} catch (IllegalArgumentException e) {
+			check("closed session is released: " + e.getMessage(), false);
+		}
+		first.finish();
+		third.finish();
+		interceptor.close();
+	}
+	
+	/**
+	 * Check that a new interceptor can inject a channel before the handler of the previous one has been removed.
+	 */
+	private void checkReinstall() {
+		Player player = StandIns.newPlayer("Reinstall", world);
+		EmbeddedChannel channel = new EmbeddedChannel();
+		TimeInterceptor previous = createInterceptor();
+		SimulatedBackends.injectChannel(previous, player, channel);
+		
+		// The removal is only queued on the event loop
+		previous.close();
+		TimeInterceptor interceptor = createInterceptor();
+		
+		try {
+			ChannelHandler handler = SimulatedBackends.injectChannel(interceptor, player, channel);
+			channel.runPendingTasks();
+			check("new handler is kept", channel.pipeline().toMap().containsValue(handler));
+			check("stale handler is replaced", countTimeHandlers(channel) == 1);
+		} catch (IllegalArgumentException e) {
+			check("stale handler is replaced: " + e.getMessage(), false);
+		}
+		
+		Packet4UpdateTime packet = new Packet4UpdateTime(100, 100);
+		channel.writeOutbound(packet);
+		check("reinstalled handler rewrites packets", channel.readOutbound() == packet && packet.b == REWRITTEN_TIME);
+		
+		channel.finish();
+		interceptor.close();
+	}
+	
+	private int countTimeHandlers(EmbeddedChannel channel) {
+		int count = 0;
+		
+		for (ChannelHandler handler : channel.pipeline().toMap().values()) {
+			if (handler instanceof InterceptorChannelPipeline.TimeHandler)
+				count++;
+		}
+		return count;
+	}
+	
+	private TimeInterceptor createInterceptor() {
+		TimeInterceptor interceptor = SimulatedBackends.newChannelPipeline(plugin, Packet4UpdateTime.class);
+		interceptor.addTimeListener(BenchmarkListeners.fromClock(
+			new Clock(DaylightPreset.defaultPreset(), TimeOfDay.NOON, 0), true));
+		return interceptor;
+	}
+	
+	private void check(String description, boolean condition) {
+		if (!condition) {
+			System.out.println("FAILED: " + description);
+			success = false;
+		}
+	}
+}
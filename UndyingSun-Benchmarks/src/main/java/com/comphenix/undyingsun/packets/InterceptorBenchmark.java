@@ -0,0 +1,78 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.packets;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.comphenix.undyingsun.benchmark.BenchmarkListeners;
+import com.comphenix.undyingsun.benchmark.BenchmarkPresets;
+import com.comphenix.undyingsun.benchmark.StandIns;
+import com.comphenix.undyingsun.temporal.Clock;
+import com.comphenix.undyingsun.temporal.TimeOfDay;
+
+/**
+ * Measures {@link TimeInterceptor#invokeListeners(Player, long, long)} on and off the main thread.
+ * @author Kristian
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterceptorBenchmark {
+	@Param({ "true", "false" })
+	public boolean primaryThread;
+	
+	@Param({ "true", "false" })
+	public boolean asyncListener;
+	
+	private TimeInterceptor interceptor;
+	private Player player;
+	private long totalTime;
+	
+	@Setup
+	public void setup() {
+		// Setup runs on the benchmark thread for thread scoped state
+		StandIns.setPrimaryThread(primaryThread);
+		
+		interceptor = new TimeSetter(StandIns.getPlugin());
+		interceptor.addTimeListener(BenchmarkListeners.fromClock(
+			new Clock(BenchmarkPresets.fromName("long-night"), TimeOfDay.NOON, 1), asyncListener));
+		player = StandIns.newPlayer("Player", StandIns.newWorld("world", 0));
+	}
+	
+	@Benchmark
+	public long invokeListeners() throws Exception {
+		totalTime++;
+		return interceptor.invokeListeners(player, totalTime, totalTime % Clock.TICKS_PER_DAY);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.packets;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.comphenix.undyingsun.benchmark.BenchmarkListeners;
+import com.comphenix.undyingsun.benchmark.BenchmarkPresets;
+import com.comphenix.undyingsun.benchmark.Packet0KeepAlive;
+import com.comphenix.undyingsun.benchmark.Packet4UpdateTime;
+import com.comphenix.undyingsun.benchmark.StandIns;
+import com.comphenix.undyingsun.temporal.Clock;
+import com.comphenix.undyingsun.temporal.TimeOfDay;
+
+/**
+ * Measures the cost of adding a packet to a proxied packet queue.
+ * @author Kristian
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueuedPacketsBenchmark {
+	@Param({ "time", "other" })
+	public String packet;
+	
+	private InterceptorQueuedPackets interceptor;
+	private List<Object> queue;
+	private Object element;
+	
+	@Setup
+	public void setup() {
+		// Packets are queued from network and main threads alike
+		StandIns.setPrimaryThread(false);
+		
+		Player player = StandIns.newPlayer("Player", StandIns.newWorld("world", 0));
+		interceptor = new InterceptorQueuedPackets(StandIns.getPlugin(), Packet4UpdateTime.class);
+		interceptor.addTimeListener(BenchmarkListeners.fromClock(
+			new Clock(BenchmarkPresets.fromName("long-night"), TimeOfDay.NOON, 1), true));
+		queue = interceptor.new ProxyList(player, new DiscardingList());
+		element = "time".equals(packet) ? new Packet4UpdateTime(0, 0) : new Packet0KeepAlive();
+	}
+	
+	@TearDown
+	public void tearDown() {
+		interceptor.close();
+	}
+	
+	@Benchmark
+	public boolean add() {
+		return queue.add(element);
+	}
+	
+	/**
+	 * Represents a queue that drops every packet, so it never grows.
+	 * @author Kristian
+	 */
+	private static class DiscardingList extends AbstractList<Object> {
+		@Override
+		public boolean add(Object element) {
+			return true;
+		}
+		
+		@Override
+		public Object get(int index) {
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+
+		@Override
+		public int size() {
+			return 0;
+		}
+	}
+}
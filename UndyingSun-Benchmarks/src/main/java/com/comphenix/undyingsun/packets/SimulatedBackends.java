@@ -0,0 +1,136 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.packets;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+
+import java.util.List;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import com.comphenix.undyingsun.metrics.PacketCounters.Event;
+
+/**
+ * Exposes the per-packet paths of every packet interceptor to simulations outside this package.
+ * @author Kristian
+ */
+public class SimulatedBackends {
+	private SimulatedBackends() {
+		// Not constructable
+	}
+	
+	/**
+	 * Construct an interceptor that proxies the packet queue of every player.
+	 * <p>
+	 * Queues must be wrapped with {@link #newQueue(TimeInterceptor, Player, List)}.
+	 * @param plugin - the owner plugin.
+	 * @param packetClass - the class of the time packets added to each queue.
+	 * @return The interceptor.
+	 */
+	public static TimeInterceptor newQueuedPackets(Plugin plugin, Class<?> packetClass) {
+		return new InterceptorQueuedPackets(plugin, packetClass);
+	}
+	
+	/**
+	 * Construct an interceptor that adds a handler to the channel pipeline of every player.
+	 * <p>
+	 * Channels must be injected with {@link #injectChannel(TimeInterceptor, Player, Channel)}.
+	 * @param plugin - the owner plugin.
+	 * @param packetClass - the class of the time packets written to each channel.
+	 * @return The interceptor.
+	 */
+	public static TimeInterceptor newChannelPipeline(Plugin plugin, Class<?> packetClass) {
+		return new InterceptorChannelPipeline(plugin, packetClass);
+	}
+	
+	/**
+	 * Add the time handler of a player to the given channel.
+	 * @param interceptor - an interceptor from {@link #newChannelPipeline(Plugin, Class)}.
+	 * @param player - the player that owns the channel.
+	 * @param channel - the channel.
+	 * @return The added handler.
+	 */
+	public static ChannelHandler injectChannel(TimeInterceptor interceptor, Player player, Channel channel) {
+		return ((InterceptorChannelPipeline) interceptor).injectChannel(player, channel);
+	}
+	
+	/**
+	 * Construct an interceptor where time packets are delivered by calling {@link Direct#send(Player, long, long)}.
+	 * <p>
+	 * This follows the same steps as the ProtocolLib and channel pipeline interceptors.
+	 * @param plugin - the owner plugin.
+	 * @return The interceptor.
+	 */
+	public static Direct newDirect(Plugin plugin) {
+		return new Direct(plugin);
+	}
+	
+	/**
+	 * Wrap the given packet queue of a player, so time packets are intercepted as they are queued.
+	 * @param interceptor - an interceptor from {@link #newQueuedPackets(Plugin, Class)}.
+	 * @param player - the player that owns the queue.
+	 * @param queue - the packet queue.
+	 * @return The intercepting queue.
+	 */
+	public static List<Object> newQueue(TimeInterceptor interceptor, Player player, List<Object> queue) {
+		return ((InterceptorQueuedPackets) interceptor).new ProxyList(player, queue);
+	}
+	
+	/**
+	 * Represents an interceptor whose time packets are sent directly by the caller.
+	 * @author Kristian
+	 */
+	public static class Direct extends TimeInterceptor {
+		private Direct(Plugin plugin) {
+			super(plugin);
+		}
+		
+		/**
+		 * Intercept a time packet that is being sent to a player.
+		 * @param reciever - the receiving player.
+		 * @param totalTime - the total time in the packet.
+		 * @param relativeTime - the relative time in the packet.
+		 * @return TRUE if the packet is sent, FALSE if it was suppressed.
+		 * @throws Exception If a listener failed.
+		 */
+		public boolean send(Player reciever, long totalTime, long relativeTime) throws Exception {
+			recordPacket(Event.SEEN);
+			long processedTime = invokeListeners(reciever, totalTime, relativeTime);
+			
+			if (isRedundant(reciever, processedTime)) {
+				recordPacket(Event.SUPPRESSED);
+				return false;
+			}
+			if (processedTime != relativeTime)
+				recordPacket(Event.REWRITTEN);
+			return true;
+		}
+		
+		@Override
+		public String getName() {
+			return "Direct";
+		}
+		
+		@Override
+		public void close() {
+			// Nothing to clean up
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun;
+
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.World;
+import org.bukkit.World.Environment;
+
+import com.comphenix.undyingsun.regions.ClockRegion;
+import com.comphenix.undyingsun.temporal.Clock;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Represents every clock and clock related setting loaded from the configuration.
+ * <p>
+ * This class is immutable, so a complete set of clocks can be published with a single reference.
+ * @author Kristian
+ */
+class ClockSettings {
+	private final Clock serverClock;
+	private final Clock clientClock;
+	
+	// Clocks of individual worlds, by world name
+	private final Map<String, Clock> worldServerClocks;
+	private final Map<String, Clock> worldClientClocks;
+	
+	// Regions with their own client clock, in order of precedence
+	private final List<ClockRegion> regions;
+	
+	// Maximum error in ticks before a time packet is sent, or negative to send every packet
+	private final int maxPacketError;
+	
+	// The minimum change in ticks before the server clock is updated
+	private final int updateThreshold;
+	
+	// The maximum number of worlds updated per tick, or non-positive for no limit
+	private final int worldUpdateBudget;
+	
+	// Incremented whenever a clock changes
+	private final int revision;
+	
+	public ClockSettings(Clock serverClock, Clock clientClock, 
+			Map<String, Clock> worldServerClocks, Map<String, Clock> worldClientClocks, 
+			List<ClockRegion> regions, int maxPacketError, int updateThreshold, int worldUpdateBudget, int revision) {
+		this.serverClock = serverClock;
+		this.clientClock = clientClock;
+		this.worldServerClocks = ImmutableMap.copyOf(worldServerClocks);
+		this.worldClientClocks = ImmutableMap.copyOf(worldClientClocks);
+		this.regions = ImmutableList.copyOf(regions);
+		this.maxPacketError = maxPacketError;
+		this.updateThreshold = updateThreshold;
+		this.worldUpdateBudget = worldUpdateBudget;
+		this.revision = revision;
+	}
+	
+	/**
+	 * Retrieve the default settings.
+	 * @return The default settings.
+	 */
+	public static ClockSettings defaultSettings() {
+		Map<String, Clock> empty = ImmutableMap.of();
+		List<ClockRegion> noRegions = ImmutableList.of();
+		return new ClockSettings(Clock.defaultClock(), Clock.defaultClock(), empty, empty, noRegions, 0, 1, 0, 0);
+	}
+	
+	/**
+	 * Retrieve a copy of these settings with the given server clock.
+	 * @param serverClock - the new server clock.
+	 * @return The new settings, with a new revision.
+	 */
+	public ClockSettings withServerClock(Clock serverClock) {
+		return new ClockSettings(serverClock, clientClock, worldServerClocks, worldClientClocks, 
+				regions, maxPacketError, updateThreshold, worldUpdateBudget, revision + 1);
+	}
+	
+	/**
+	 * Retrieve a copy of these settings with the given client clock.
+	 * @param clientClock - the new client clock.
+	 * @return The new settings, with a new revision.
+	 */
+	public ClockSettings withClientClock(Clock clientClock) {
+		return new ClockSettings(serverClock, clientClock, worldServerClocks, worldClientClocks, 
+				regions, maxPacketError, updateThreshold, worldUpdateBudget, revision + 1);
+	}
+	
+	/**
+	 * Retrieve a copy of these settings where every finished transition has been replaced by its target clock.
+	 * <p>
+	 * This includes the clocks of individual worlds.
+	 * @return The new settings with a new revision, or these settings if no transition has finished.
+	 */
+	public ClockSettings withResolvedClocks() {
+		Clock server = serverClock.resolve();
+		Clock client = clientClock.resolve();
+		Map<String, Clock> worldServer = resolveClocks(worldServerClocks);
+		Map<String, Clock> worldClient = resolveClocks(worldClientClocks);
+		
+		if (server == serverClock && client == clientClock && 
+				worldServer == worldServerClocks && worldClient == worldClientClocks) {
+			return this;
+		}
+		return new ClockSettings(server, client, worldServer, worldClient, 
+				regions, maxPacketError, updateThreshold, worldUpdateBudget, revision + 1);
+	}
+	
+	/**
+	 * Resolve every clock in the given map.
+	 * @param clocks - the clocks by world name.
+	 * @return The resolved clocks, or the same map if no clock has changed.
+	 */
+	private static Map<String, Clock> resolveClocks(Map<String, Clock> clocks) {
+		ImmutableMap.Builder<String, Clock> builder = null;
+		
+		for (Map.Entry<String, Clock> entry : clocks.entrySet()) {
+			if (entry.getValue().resolve() != entry.getValue()) {
+				builder = ImmutableMap.builder();
+				break;
+			}
+		}
+		// Common case - nothing to resolve
+		if (builder == null)
+			return clocks;
+		
+		for (Map.Entry<String, Clock> entry : clocks.entrySet()) {
+			builder.put(entry.getKey(), entry.getValue().resolve());
+		}
+		return builder.build();
+	}
+	
+	/**
+	 * Retrieve a copy of these settings with the given revision.
+	 * @param revision - the new revision.
+	 * @return The new settings.
+	 */
+	public ClockSettings withRevision(int revision) {
+		return new ClockSettings(serverClock, clientClock, worldServerClocks, worldClientClocks, 
+				regions, maxPacketError, updateThreshold, worldUpdateBudget, revision);
+	}
+	
+	/**
+	 * Retrieve the default server clock.
+	 * @return Server clock.
+	 */
+	public Clock getServerClock() {
+		return serverClock;
+	}
+	
+	/**
+	 * Retrieve the default client clock.
+	 * @return Client clock.
+	 */
+	public Clock getClientClock() {
+		return clientClock;
+	}
+	
+	/**
+	 * Retrieve the server clock of the given world.
+	 * <p>
+	 * Worlds without a sky always use the default clock.
+	 * @param world - the world.
+	 * @return The server clock of the world.
+	 */
+	public Clock getServerClock(World world) {
+		return getWorldClock(world, worldServerClocks, serverClock);
+	}
+	
+	/**
+	 * Retrieve the client clock of the given world.
+	 * <p>
+	 * Worlds without a sky always use the default clock.
+	 * @param world - the world.
+	 * @return The client clock of the world.
+	 */
+	public Clock getClientClock(World world) {
+		return getWorldClock(world, worldClientClocks, clientClock);
+	}
+	
+	private Clock getWorldClock(World world, Map<String, Clock> worldClocks, Clock defaultValue) {
+		if (!hasSky(world))
+			return Clock.defaultClock();
+		Clock clock = worldClocks.get(world.getName());
+		return clock != null ? clock : defaultValue;
+	}
+	
+	/**
+	 * Determine if the given world has a visible sky and day cycle.
+	 * @param world - the world to check.
+	 * @return TRUE if it does, FALSE otherwise.
+	 */
+	private boolean hasSky(World world) {
+		Environment environment = world.getEnvironment();
+		return environment != Environment.NETHER && environment != Environment.THE_END;
+	}
+	
+	/**
+	 * Retrieve every region with its own client clock.
+	 * @return The regions, in order of precedence.
+	 */
+	public List<ClockRegion> getRegions() {
+		return regions;
+	}
+	
+	/**
+	 * Retrieve the maximum number of ticks a client may be off by before we send a time packet.
+	 * @return The maximum error, or a negative value if every time packet should be sent.
+	 */
+	public int getMaxPacketError() {
+		return maxPacketError;
+	}
+	
+	/**
+	 * Retrieve the minimum change in ticks of a clock before the server or player time is updated.
+	 * @return The update threshold, at least one.
+	 */
+	public int getUpdateThreshold() {
+		return updateThreshold;
+	}
+	
+	/**
+	 * Retrieve the maximum number of worlds whose server time is updated in a single tick.
+	 * @return The budget, or a non-positive value if there is no limit.
+	 */
+	public int getWorldUpdateBudget() {
+		return worldUpdateBudget;
+	}
+	
+	/**
+	 * Retrieve the revision of these settings.
+	 * @return The revision.
+	 */
+	public int getRevision() {
+		return revision;
+	}
+	
+	/**
+	 * Determine if the given settings contain the same values, ignoring the revision.
+	 * @param other - the other settings.
+	 * @return TRUE if they do, FALSE otherwise.
+	 */
+	public boolean hasSameValues(ClockSettings other) {
+		return other != null &&
+			   Objects.equal(serverClock, other.serverClock) &&
+			   Objects.equal(clientClock, other.clientClock) &&
+			   worldServerClocks.equals(other.worldServerClocks) &&
+			   worldClientClocks.equals(other.worldClientClocks) &&
+			   regions.equals(other.regions) &&
+			   maxPacketError == other.maxPacketError &&
+			   updateThreshold == other.updateThreshold &&
+			   worldUpdateBudget == other.worldUpdateBudget;
+	}
+}
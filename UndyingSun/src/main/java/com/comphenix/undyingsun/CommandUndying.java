@@ -22,13 +22,23 @@ import java.util.Collections;
 import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
+import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabExecutor;
+import org.bukkit.entity.Player;
 
+import com.comphenix.undyingsun.metrics.LatencyHistogram;
+import com.comphenix.undyingsun.metrics.Metrics;
+import com.comphenix.undyingsun.metrics.PacketCounters;
+import com.comphenix.undyingsun.metrics.PacketCounters.Event;
+import com.comphenix.undyingsun.players.PlayerClocks;
+import com.comphenix.undyingsun.temporal.Clock;
+import com.comphenix.undyingsun.temporal.ClockTransition;
 import com.comphenix.undyingsun.temporal.TimeOfDay;
 import com.google.common.base.Functions;
+import com.google.common.base.Ticker;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
@@ -45,13 +55,24 @@ class CommandUndying implements TabExecutor {
 	// The configuration
 	private UndyingConfiguration config;
 	
+	// Client clocks of individual players
+	private PlayerClocks playerClocks;
+	
+	// Performance counters
+	private Metrics metrics;
+	
+	// Measures the progress of transitions
+	private Ticker ticker;
+	
 	// The sub commands
 	private enum SubCommand {
 		RELOAD("reload"),
 		SERVER_TIME("servertime"),
 		CLIENT_TIME("clienttime"),
 		SERVER_SPEED("serverspeed"),
-		CLIENT_SPEED("clientspeed");
+		CLIENT_SPEED("clientspeed"),
+		PLAYER_CLOCK("playerclock"),
+		STATS("stats");
 		
 		private final String commandName;
 	
@@ -90,9 +111,15 @@ class CommandUndying implements TabExecutor {
 	/**
 	 * Construct a new command handler.
 	 * @param config - the configuration.
+	 * @param playerClocks - the client clocks of individual players.
+	 * @param metrics - the performance counters.
+	 * @param ticker - the monotonic source of time that measures transitions.
 	 */
-	public CommandUndying(UndyingConfiguration config) {
+	public CommandUndying(UndyingConfiguration config, PlayerClocks playerClocks, Metrics metrics, Ticker ticker) {
 		this.config = config;
+		this.playerClocks = playerClocks;
+		this.metrics = metrics;
+		this.ticker = ticker;
 	}
 	
 	@Override
@@ -133,6 +160,12 @@ class CommandUndying implements TabExecutor {
 			case SERVER_SPEED:
 				handleSpeed(sender, subCommand, args);
 				break;
+			case PLAYER_CLOCK:
+				handlePlayerClock(sender, args);
+				break;
+			case STATS:
+				handleStats(sender);
+				break;
 			default:
 				sender.sendMessage(ChatColor.RED + "No sub-command with the name " + commandName);
 		}
@@ -140,6 +173,8 @@ class CommandUndying implements TabExecutor {
 	
 	/**
 	 * Handle the server time or the client time subcommand.
+	 * <p>
+	 * Usage: servertime|clienttime [time] [over &lt;ticks&gt;]
 	 * @param sender - the sender.
 	 * @param command - the sub-command.
 	 * @param args - the arguments.
@@ -157,25 +192,28 @@ class CommandUndying implements TabExecutor {
 				));
 			}
 			
-		} else if (args.size() == 1) {
+		} else if (isTransition(args)) {
 			if (!sender.hasPermission(PERMISSION_WRITE_CONF)) {
 				sender.sendMessage(ChatColor.RED + "Insufficient permission.");
 				return;
 			}
 			
-			TimeOfDay time = CommandTimeParser.parse(args.get(0));
-			
-			// Update configuration
-			if (server)
-				config.setServerTime(time);
-			else
-				config.setClientTime(time);
-			config.saveConfig();
-			
-			// Notify sender
-			sender.sendMessage(ChatColor.GOLD + "New fixed " + 
-					(server ? "server" : "client") + " time: " + time.getAlias());
-			
+			try {
+				TimeOfDay time = CommandTimeParser.parse(args.get(0));
+				long duration = parseDuration(args);
+				Clock current = server ? config.getServerClock() : config.getClientClock();
+				
+				// Update configuration
+				setClock(server, transition(current, current.withOrigin(time), duration));
+				config.saveConfig();
+				
+				// Notify sender
+				sender.sendMessage(ChatColor.GOLD + "New fixed " + 
+						(server ? "server" : "client") + " time: " + time.getAlias() + formatDuration(duration));
+				
+			} catch (IllegalArgumentException e) {
+				sender.sendMessage(ChatColor.RED + e.getMessage());
+			}
 		} else {
 			sender.sendMessage(ChatColor.RED + "Too many arguments.");
 		}
@@ -183,6 +221,8 @@ class CommandUndying implements TabExecutor {
 	
 	/**
 	 * Handle the server speed or the client speed subcommand.
+	 * <p>
+	 * Usage: serverspeed|clientspeed [speed] [over &lt;ticks&gt;]
 	 * @param sender - the sender.
 	 * @param command - the sub-command.
 	 * @param args - the arguments.
@@ -199,7 +239,7 @@ class CommandUndying implements TabExecutor {
 				);
 			}
 			
-		} else if (args.size() == 1) {
+		} else if (isTransition(args)) {
 			if (!sender.hasPermission(PERMISSION_WRITE_CONF)) {
 				sender.sendMessage(ChatColor.RED + "Insufficient permission.");
 				return;
@@ -207,26 +247,174 @@ class CommandUndying implements TabExecutor {
 			
 			try {
 				double speed = Double.parseDouble(args.get(0));
+				long duration = parseDuration(args);
+				Clock current = server ? config.getServerClock() : config.getClientClock();
 				
-				if (server)
-					config.setServerSpeed(speed);
-				else
-					config.setClientSpeed(speed);
+				setClock(server, transition(current, current.withSpeed(speed), duration));
 				config.saveConfig();
 				
 				// Notify sender
 				sender.sendMessage(ChatColor.GOLD + "New " + 
-						(server ? "server" : "client") + " speed: " + speed);
+						(server ? "server" : "client") + " speed: " + speed + formatDuration(duration));
 				
 			} catch (NumberFormatException e) {
 				// Incorrect input
-				sender.sendMessage(ChatColor.RED + args.get(0) + " is not a number.");
+				sender.sendMessage(ChatColor.RED + "Cannot parse " + StringUtils.join(args, " "));
+			} catch (IllegalArgumentException e) {
+				sender.sendMessage(ChatColor.RED + e.getMessage());
 			}
 		} else {
 			sender.sendMessage(ChatColor.RED + "Too many arguments.");
 		}
 	}
 	
+	/**
+	 * Determine if the given arguments contain a single value, optionally followed by a transition.
+	 * @param args - the arguments.
+	 * @return TRUE if they do, FALSE otherwise.
+	 */
+	private boolean isTransition(List<String> args) {
+		return args.size() == 1 || (args.size() == 3 && "over".equalsIgnoreCase(args.get(1)));
+	}
+	
+	/**
+	 * Parse the duration of a transition.
+	 * @param args - the arguments.
+	 * @return The duration in ticks, or zero if the change is immediate.
+	 */
+	private long parseDuration(List<String> args) {
+		if (args.size() < 3)
+			return 0;
+		long duration = Long.parseLong(args.get(2));
+		
+		if (duration <= 0)
+			throw new IllegalArgumentException("Duration must be positive.");
+		return duration;
+	}
+	
+	/**
+	 * Retrieve a clock that transitions from the current clock to the target clock.
+	 * @param current - the current clock.
+	 * @param target - the target clock.
+	 * @param duration - the duration in ticks, or zero if the change is immediate.
+	 * @return The clock to use.
+	 */
+	private Clock transition(Clock current, Clock target, long duration) {
+		return duration > 0 ? new ClockTransition(current, target, duration, ticker) : target;
+	}
+	
+	/**
+	 * Set the server or client clock.
+	 * @param server - TRUE to set the server clock, FALSE to set the client clock.
+	 * @param clock - the new clock.
+	 */
+	private void setClock(boolean server, Clock clock) {
+		if (server)
+			config.setServerClock(clock);
+		else
+			config.setClientClock(clock);
+	}
+	
+	/**
+	 * Describe the duration of a transition.
+	 * @param duration - the duration in ticks.
+	 * @return The description.
+	 */
+	private String formatDuration(long duration) {
+		return duration > 0 ? " over " + duration + " ticks" : "";
+	}
+	
+	/**
+	 * Handle the player clock subcommand.
+	 * <p>
+	 * Usage: playerclock &lt;player&gt; [time|reset] [speed] [offset]
+	 * @param sender - the sender.
+	 * @param args - the arguments.
+	 */
+	private void handlePlayerClock(CommandSender sender, List<String> args) {
+		if (args.size() == 0) {
+			sender.sendMessage(ChatColor.RED + "Usage: playerclock <player> [time|reset] [speed] [offset]");
+			return;
+		} else if (args.size() > 4) {
+			sender.sendMessage(ChatColor.RED + "Too many arguments.");
+			return;
+		}
+		Player player = Bukkit.getPlayerExact(args.get(0));
+		
+		if (player == null) {
+			sender.sendMessage(ChatColor.RED + "Cannot find player " + args.get(0));
+			return;
+		}
+		
+		if (args.size() == 1) {
+			if (!sender.hasPermission(PERMISSION_READ_CONF)) {
+				sender.sendMessage(ChatColor.RED + "Insufficient permission.");
+			} else {
+				sender.sendMessage(player.getName() + (playerClocks.hasOverride(player) ? 
+						" has a custom client clock." : " uses the client clock of the world."));
+			}
+			return;
+		}
+		if (!sender.hasPermission(PERMISSION_WRITE_CONF)) {
+			sender.sendMessage(ChatColor.RED + "Insufficient permission.");
+			return;
+		}
+		
+		try {
+			TimeOfDay time = "reset".equalsIgnoreCase(args.get(1)) ? null : CommandTimeParser.parse(args.get(1));
+			double speed = args.size() > 2 ? Double.parseDouble(args.get(2)) : 0;
+			int offset = args.size() > 3 ? Integer.parseInt(args.get(3)) : 0;
+			
+			if (time == null) {
+				playerClocks.clearOverride(player);
+				sender.sendMessage(ChatColor.GOLD + "Reset client clock of " + player.getName());
+			} else {
+				playerClocks.setOverride(player, config.getClientClock().getPreset(), time, speed, offset);
+				sender.sendMessage(ChatColor.GOLD + "New client time of " + player.getName() + ": " + 
+						time.getAlias() + " at speed " + speed);
+			}
+		} catch (NumberFormatException e) {
+			// Incorrect input
+			sender.sendMessage(ChatColor.RED + "Cannot parse " + StringUtils.join(args.subList(1, args.size()), " "));
+		} catch (IllegalArgumentException e) {
+			sender.sendMessage(ChatColor.RED + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Handle the stats subcommand.
+	 * @param sender - the sender.
+	 */
+	private void handleStats(CommandSender sender) {
+		if (!sender.hasPermission(PERMISSION_READ_CONF)) {
+			sender.sendMessage(ChatColor.RED + "Insufficient permission.");
+			return;
+		}
+		
+		for (PacketCounters packets : metrics.getPacketCounters()) {
+			sender.sendMessage(ChatColor.GOLD + packets.getBackend() + ": " + 
+				packets.get(Event.SEEN) + " seen, " + 
+				packets.get(Event.REWRITTEN) + " rewritten, " +
+				packets.get(Event.SUPPRESSED) + " suppressed, " +
+				packets.get(Event.FAILED) + " failed");
+		}
+		sender.sendMessage(ChatColor.GOLD + "Listeners: " + formatLatency(metrics.getListenerTime()) + 
+				", " + metrics.getSyncHops() + " sync hops");
+		sender.sendMessage(ChatColor.GOLD + "Server updates: " + formatLatency(metrics.getServerUpdateTime()) + 
+				", " + metrics.getSetTimeCalls() + " setTime calls, " + 
+				metrics.getPlayerTimeCalls() + " setPlayerTime calls");
+	}
+	
+	/**
+	 * Summarize the given histogram.
+	 * @param histogram - the histogram.
+	 * @return The summary.
+	 */
+	private String formatLatency(LatencyHistogram histogram) {
+		return String.format("%d calls, mean %.1f us, p99 < %.1f us", 
+				histogram.getCount(), histogram.getMean() / 1000.0, histogram.getPercentile(0.99) / 1000.0);
+	}
+	
 	@Override
 	public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
 		// Don't display tab complete for players without the permission
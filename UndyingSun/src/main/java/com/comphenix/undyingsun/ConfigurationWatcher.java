@@ -0,0 +1,169 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.google.common.io.Files;
+
+/**
+ * Periodically checks a file for modifications on a background thread.
+ * <p>
+ * Modifications made by a {@link ConfigurationWriter} are ignored.
+ * @author Kristian
+ */
+class ConfigurationWatcher {
+	/**
+	 * Identifies the content of a file at a given point in time.
+	 * @author Kristian
+	 */
+	static final class Stamp {
+		/**
+		 * Represents a file that doesn't exist.
+		 */
+		static final Stamp MISSING = new Stamp(0, 0, 0, 0);
+		
+		private final long lastModified;
+		private final long length;
+		private final long checksum;
+		
+		// When the content was read
+		private final long readTime;
+		
+		private Stamp(long lastModified, long length, long checksum, long readTime) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.checksum = checksum;
+			this.readTime = readTime;
+		}
+		
+		/**
+		 * Determine if the file may have been modified within the modification time resolution after it was read.
+		 * @return TRUE if an unchanged modification time and length doesn't guarantee unchanged content.
+		 */
+		boolean isAmbiguous() {
+			return readTime - lastModified < MODIFIED_RESOLUTION;
+		}
+		
+		boolean hasMetadata(long lastModified, long length) {
+			return this.lastModified == lastModified && this.length == length;
+		}
+		
+		/**
+		 * Determine if the given stamp identifies the same content.
+		 * @param other - the other stamp.
+		 * @return TRUE if it does, FALSE otherwise.
+		 */
+		boolean isSameContent(Stamp other) {
+			return other != null && hasMetadata(other.lastModified, other.length) && checksum == other.checksum;
+		}
+	}
+	
+	/**
+	 * The number of ticks between each check.
+	 */
+	private static final int WATCH_DELAY = 2 * UndyingSunPlugin.TICKS_PER_SECOND;
+	
+	/**
+	 * The coarsest modification time resolution we expect from a file system, in milliseconds.
+	 */
+	private static final long MODIFIED_RESOLUTION = 2000;
+	
+	private final File file;
+	private final ConfigurationWriter writer;
+	private final Runnable callback;
+	
+	// The modification stamp we last saw
+	private volatile Stamp lastStamp;
+	private BukkitTask watchTask;
+	
+	/**
+	 * Start watching the given file.
+	 * @param plugin - the owner plugin.
+	 * @param file - the file to watch.
+	 * @param writer - the writer whose modifications should be ignored.
+	 * @param callback - invoked on a background thread when the file has been modified.
+	 */
+	public ConfigurationWatcher(Plugin plugin, File file, ConfigurationWriter writer, Runnable callback) {
+		this.file = file;
+		this.writer = writer;
+		this.callback = callback;
+		this.lastStamp = getStamp(file);
+		
+		watchTask = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, new Runnable() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, WATCH_DELAY, WATCH_DELAY);
+	}
+	
+	/**
+	 * Compute a stamp that identifies the current content of the file.
+	 * @param file - the file.
+	 * @return The modification stamp, or {@link Stamp#MISSING} if the file cannot be read.
+	 */
+	static Stamp getStamp(File file) {
+		// Read the clock first, so a modification during the read is always ambiguous
+		long readTime = System.currentTimeMillis();
+		long lastModified = file.lastModified();
+		long length = file.length();
+		
+		if (lastModified == 0)
+			return Stamp.MISSING;
+		
+		try {
+			return new Stamp(lastModified, length, Files.getChecksum(file, new CRC32()), readTime);
+		} catch (IOException e) {
+			return Stamp.MISSING;
+		}
+	}
+	
+	private void check() {
+		Stamp previous = lastStamp;
+		
+		// Only read the content if the modification time may be too coarse to tell
+		if (previous.hasMetadata(file.lastModified(), file.length()) && !previous.isAmbiguous())
+			return;
+		
+		Stamp stamp = getStamp(file);
+		lastStamp = stamp;
+		
+		if (!stamp.isSameContent(previous)) {
+			// Don't reload our own changes
+			if (stamp != Stamp.MISSING && !stamp.isSameContent(writer.getLastStamp())) {
+				callback.run();
+			}
+		}
+	}
+	
+	/**
+	 * Stop watching the file.
+	 */
+	public void close() {
+		if (watchTask != null) {
+			watchTask.cancel();
+			watchTask = null;
+		}
+	}
+}
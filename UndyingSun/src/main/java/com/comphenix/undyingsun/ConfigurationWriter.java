@@ -0,0 +1,212 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Writes changes to a configuration file on a background thread.
+ * <p>
+ * Changes submitted in quick succession are coalesced into a single write. The file is written to a 
+ * temporary file first, and then renamed, so it is never left partially written.
+ * @author Kristian
+ */
+class ConfigurationWriter {
+	/**
+	 * Represents a change to the configuration file.
+	 * <p>
+	 * Each change must contain every value that should be written, as only the latest change is applied.
+	 * @author Kristian
+	 */
+	public interface Change {
+		/**
+		 * Apply the change to the content of the configuration file.
+		 * <p>
+		 * This is invoked on the writer thread.
+		 * @param config - the current content of the file.
+		 */
+		public void apply(FileConfiguration config);
+	}
+	
+	/**
+	 * The number of milliseconds to wait for more changes before writing.
+	 */
+	private static final long COALESCE_DELAY = 1000;
+	
+	/**
+	 * The maximum number of seconds to wait for pending writes when closing.
+	 */
+	private static final long CLOSE_TIMEOUT = 5;
+	
+	private final File file;
+	private final Logger logger;
+	private final ScheduledThreadPoolExecutor executor;
+	
+	// The latest change that has not been written
+	private final AtomicReference<Change> pending = new AtomicReference<Change>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	
+	// The modification stamp of the file we last wrote
+	private volatile ConfigurationWatcher.Stamp lastStamp;
+	
+	// Writes the pending change, if any
+	private final Runnable writeTask = new Runnable() {
+		@Override
+		public void run() {
+			scheduled.set(false);
+			Change change = pending.getAndSet(null);
+			
+			if (change != null) {
+				write(change);
+			}
+		}
+	};
+	
+	/**
+	 * Construct a new configuration writer.
+	 * @param file - the configuration file.
+	 * @param logger - the logger to report errors to.
+	 */
+	public ConfigurationWriter(File file, Logger logger) {
+		this.file = file;
+		this.logger = logger;
+		this.executor = new ScheduledThreadPoolExecutor(1, 
+			new ThreadFactoryBuilder().setNameFormat("UndyingSun Config Writer").setDaemon(true).build());
+		
+		// Pending writes are flushed explicitly on close
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+	
+	/**
+	 * Schedule a change to the configuration file.
+	 * <p>
+	 * This method is thread-safe, and never blocks.
+	 * @param change - the change, replacing any change that has not yet been written.
+	 */
+	public void submit(Change change) {
+		pending.set(change);
+		
+		if (scheduled.compareAndSet(false, true)) {
+			executor.schedule(writeTask, COALESCE_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Write any pending change immediately, and wait until it has been written.
+	 */
+	public void flush() {
+		if (pending.get() == null || executor.isShutdown())
+			return;
+		
+		try {
+			executor.submit(writeTask).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.log(Level.WARNING, "Cannot write " + file, e.getCause());
+		}
+	}
+	
+	/**
+	 * Write any pending change, and stop the writer thread.
+	 */
+	public void close() {
+		if (executor.isShutdown())
+			return;
+		executor.execute(writeTask);
+		executor.shutdown();
+		
+		try {
+			if (!executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS))
+				logger.warning("Timed out while writing " + file);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Retrieve the modification stamp of the file after it was last written by this writer.
+	 * @return The modification stamp, or NULL if nothing has been written.
+	 * @see ConfigurationWatcher#getStamp(File)
+	 */
+	public ConfigurationWatcher.Stamp getLastStamp() {
+		return lastStamp;
+	}
+	
+	/**
+	 * Apply the given change to the configuration file.
+	 * @param change - the change.
+	 */
+	private void write(Change change) {
+		YamlConfiguration config = new YamlConfiguration();
+		
+		try {
+			config.load(file);
+		} catch (FileNotFoundException e) {
+			// Start with an empty file
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot read " + file, e);
+			return;
+		} catch (InvalidConfigurationException e) {
+			// Don't overwrite a file the user has to fix
+			logger.warning("Not saving changes to " + file + ": " + e.getMessage());
+			return;
+		}
+		change.apply(config);
+		
+		try {
+			File temporary = new File(file.getPath() + ".tmp");
+			FileOutputStream output = new FileOutputStream(temporary);
+			
+			try {
+				output.write(config.saveToString().getBytes(Charsets.UTF_8));
+				output.getFD().sync();
+			} finally {
+				output.close();
+			}
+			
+			// Renaming preserves the modification time, so the watcher can recognize our write
+			lastStamp = ConfigurationWatcher.getStamp(temporary);
+			
+			// Rename cannot replace an existing file on every platform
+			if (!temporary.renameTo(file)) {
+				if (!file.delete() || !temporary.renameTo(file))
+					throw new IOException("Cannot rename " + temporary + " to " + file);
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot write " + file, e);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.Plugin;
+
+import com.comphenix.undyingsun.players.PlayerSlots;
+
+/**
+ * Caches whether or not each online player is exempt from the client clock.
+ * <p>
+ * Bukkit has no event for permission changes, so the cache is resolved on join and world change, 
+ * and refreshed by a periodic sweep on the main thread.
+ * @author Kristian
+ */
+class ExemptionCache {
+	/**
+	 * The number of ticks between each sweep.
+	 */
+	private static final int SWEEP_DELAY = 5 * UndyingSunPlugin.TICKS_PER_SECOND;
+	
+	private final Server server;
+	private final PlayerSlots slots;
+	
+	// One bit per player slot - only written on the main thread
+	private volatile AtomicLongArray exempt = new AtomicLongArray(1);
+	
+	// The sweep task
+	private int sweepTask = -1;
+	
+	public ExemptionCache(Plugin plugin, PlayerSlots slots) {
+		this.server = plugin.getServer();
+		this.slots = slots;
+		
+		// Register exemption tracking
+		server.getPluginManager().registerEvents(new Listener() {
+			@EventHandler(priority = EventPriority.MONITOR)
+			public void onPlayerJoin(PlayerJoinEvent e) {
+				update(e.getPlayer());
+			}
+			
+			@EventHandler(priority = EventPriority.MONITOR)
+			public void onPlayerChangedWorld(PlayerChangedWorldEvent e) {
+				update(e.getPlayer());
+			}
+			
+			// Clear the slot before it is released
+			@EventHandler(priority = EventPriority.HIGHEST)
+			public void onPlayerQuit(PlayerQuitEvent e) {
+				int slot = ExemptionCache.this.slots.getSlot(e.getPlayer());
+				
+				if (slot != PlayerSlots.NO_SLOT)
+					setExempt(slot, false);
+			}
+		}, plugin);
+		
+		sweepTask = server.getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+			@Override
+			public void run() {
+				updateAll();
+			}
+		}, SWEEP_DELAY, SWEEP_DELAY);
+		
+		// Handle existing players
+		updateAll();
+	}
+	
+	/**
+	 * Determine if the given player is exempt from the client clock.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param player - the player to check.
+	 * @return TRUE if it is, FALSE otherwise.
+	 */
+	public boolean isExempt(Player player) {
+		int slot = slots.getSlot(player);
+		
+		if (slot == PlayerSlots.NO_SLOT)
+			return false;
+		AtomicLongArray bits = exempt;
+		int word = slot >>> 6;
+		return word < bits.length() && (bits.get(word) & (1L << slot)) != 0;
+	}
+	
+	/**
+	 * Recompute the exemption of every online player.
+	 */
+	public void updateAll() {
+		for (Player player : server.getOnlinePlayers()) {
+			update(player);
+		}
+	}
+	
+	/**
+	 * Recompute the exemption of the given player.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @param player - the player to update.
+	 */
+	public void update(Player player) {
+		int slot = slots.getSlot(player);
+		
+		if (slot != PlayerSlots.NO_SLOT) {
+			setExempt(slot, player.hasPermission(UndyingSunPlugin.PERMISSION_EXEMPT));
+		}
+	}
+	
+	private void setExempt(int slot, boolean value) {
+		AtomicLongArray bits = exempt;
+		int word = slot >>> 6;
+		
+		// Grow the bit set - readers will see either version
+		if (word >= bits.length()) {
+			AtomicLongArray copy = new AtomicLongArray(Math.max(word + 1, bits.length() * 2));
+			
+			for (int i = 0; i < bits.length(); i++) {
+				copy.set(i, bits.get(i));
+			}
+			exempt = bits = copy;
+		}
+		long current = bits.get(word);
+		bits.set(word, value ? current | (1L << slot) : current & ~(1L << slot));
+	}
+	
+	/**
+	 * Stop the periodic sweep.
+	 */
+	public void close() {
+		if (sweepTask >= 0) {
+			server.getScheduler().cancelTask(sweepTask);
+			sweepTask = -1;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.plugin.Plugin;
+
+import com.comphenix.undyingsun.temporal.Clock;
+
+/**
+ * Writes the server clock of every world to the world itself.
+ * <p>
+ * A world is only written when its time differs from the output of its clock, and worlds without 
+ * players are skipped until a player enters them. If there are more dirty worlds than the update 
+ * budget, the remaining worlds are written during the following ticks in a round-robin fashion.
+ * <p>
+ * Every method must be called on the main thread.
+ * @author Kristian
+ */
+class ServerClockUpdater {
+	private final Server server;
+	private final WorldTimer worldTimer;
+	
+	// The most recent snapshot, used to refresh worlds as players enter them
+	private TimeSnapshot snapshot;
+	
+	// The number of players in each world index - recounted on every update
+	private int[] playerCounts = new int[0];
+	
+	// The position in the world list of the next world to update
+	private int cursor;
+	
+	// Whether or not any dirty worlds were left for the next update
+	private boolean pending;
+	
+	public ServerClockUpdater(Plugin plugin, WorldTimer worldTimer) {
+		this.server = plugin.getServer();
+		this.worldTimer = worldTimer;
+		
+		// Refresh worlds that were skipped while they were empty
+		server.getPluginManager().registerEvents(new Listener() {
+			@EventHandler(priority = EventPriority.MONITOR)
+			public void onPlayerJoin(PlayerJoinEvent e) {
+				refresh(e.getPlayer().getWorld());
+			}
+			
+			@EventHandler(priority = EventPriority.MONITOR)
+			public void onPlayerChangedWorld(PlayerChangedWorldEvent e) {
+				refresh(e.getPlayer().getWorld());
+			}
+		}, plugin);
+	}
+	
+	/**
+	 * Write the server clock of every dirty world with players, up to the given budget.
+	 * @param current - the current snapshot.
+	 * @param budget - the maximum number of worlds to write, or non-positive for no limit.
+	 * @return The number of worlds that were written.
+	 */
+	public int update(TimeSnapshot current, int budget) {
+		List<World> worlds = server.getWorlds();
+		int size = worlds.size();
+		int written = 0;
+		
+		snapshot = current;
+		pending = false;
+		countPlayers();
+		
+		for (int i = 0; i < size; i++) {
+			int position = (cursor + i) % size;
+			World world = worlds.get(position);
+			int index = worldTimer.getIndex(world);
+			
+			if (index == WorldTimer.NO_INDEX || index >= playerCounts.length || playerCounts[index] == 0)
+				continue;
+			if (!isDirty(world, index))
+				continue;
+			
+			// Continue with this world in the next update
+			if (budget > 0 && written >= budget) {
+				cursor = position;
+				pending = true;
+				return written;
+			}
+			write(world, index);
+			written++;
+		}
+		cursor = 0;
+		return written;
+	}
+	
+	/**
+	 * Write the server clock of the given world immediately, if it is dirty.
+	 * @param world - the world.
+	 */
+	public void refresh(World world) {
+		int index = worldTimer.getIndex(world);
+		
+		if (snapshot != null && index != WorldTimer.NO_INDEX && isDirty(world, index)) {
+			write(world, index);
+		}
+	}
+	
+	/**
+	 * Determine if any dirty worlds were left for the next update due to the budget.
+	 * @return TRUE if there were, FALSE otherwise.
+	 */
+	public boolean hasPending() {
+		return pending;
+	}
+	
+	/**
+	 * Determine if the time of the given world differs from the output of its server clock.
+	 * @param world - the world.
+	 * @param index - the index of the world.
+	 * @return TRUE if it does, FALSE otherwise.
+	 */
+	private boolean isDirty(World world, int index) {
+		Clock clock = snapshot.getServerClock(index);
+		return !clock.isDefault() && world.getTime() != clock.get(worldTimer.getWorldTime(index));
+	}
+	
+	/**
+	 * Write the output of the server clock to the given world.
+	 * @param world - the world.
+	 * @param index - the index of the world.
+	 */
+	private void write(World world, int index) {
+		Clock clock = snapshot.getServerClock(index);
+		world.setTime(clock.get(worldTimer.getWorldTime(index)));
+	}
+	
+	/**
+	 * Recount the number of players in every world.
+	 */
+	private void countPlayers() {
+		int capacity = worldTimer.getCapacity();
+		
+		if (playerCounts.length != capacity)
+			playerCounts = new int[capacity];
+		else
+			Arrays.fill(playerCounts, 0);
+		
+		for (Player player : server.getOnlinePlayers()) {
+			int index = worldTimer.getIndex(player.getWorld());
+			
+			if (index != WorldTimer.NO_INDEX && index < capacity)
+				playerCounts[index]++;
+		}
+	}
+}
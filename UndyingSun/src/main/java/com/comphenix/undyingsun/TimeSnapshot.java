@@ -0,0 +1,150 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun;
+
+import java.util.Arrays;
+
+import org.bukkit.World;
+
+import com.comphenix.undyingsun.temporal.Clock;
+
+/**
+ * Represents an immutable view of everything needed to process a time packet.
+ * <p>
+ * The clocks of every world are resolved when the snapshot is created, and stored by world index. 
+ * Snapshots are created on the main thread, and may be read from any thread.
+ * @author Kristian
+ */
+class TimeSnapshot {
+	private final Clock[] serverClocks;
+	private final Clock[] clientClocks;
+	
+	// The revisions this snapshot was created from
+	private final int configRevision;
+	private final int worldRevision;
+	
+	private TimeSnapshot(Clock[] serverClocks, Clock[] clientClocks, int configRevision, int worldRevision) {
+		this.serverClocks = serverClocks;
+		this.clientClocks = clientClocks;
+		this.configRevision = configRevision;
+		this.worldRevision = worldRevision;
+	}
+
+	/**
+	 * Capture the current state of the server.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @param config - the current configuration.
+	 * @param worldTimer - the world timer.
+	 * @param worlds - every loaded world.
+	 * @return The new snapshot.
+	 */
+	public static TimeSnapshot capture(UndyingConfiguration config, WorldTimer worldTimer, Iterable<World> worlds) {
+		ClockSettings settings = config.getSettings();
+		Clock[] serverClocks = new Clock[worldTimer.getCapacity()];
+		Clock[] clientClocks = new Clock[serverClocks.length];
+		
+		// Unused indices leave the time alone
+		Arrays.fill(serverClocks, Clock.defaultClock());
+		Arrays.fill(clientClocks, Clock.defaultClock());
+		
+		for (World world : worlds) {
+			int index = worldTimer.getIndex(world);
+			
+			if (index != WorldTimer.NO_INDEX && index < serverClocks.length) {
+				serverClocks[index] = settings.getServerClock(world);
+				clientClocks[index] = settings.getClientClock(world);
+			}
+		}
+		return new TimeSnapshot(serverClocks, clientClocks, settings.getRevision(), worldTimer.getRevision());
+	}
+	
+	/**
+	 * Determine if this snapshot still reflects the given configuration and set of worlds.
+	 * @param config - the configuration.
+	 * @param worldTimer - the world timer.
+	 * @return TRUE if it does, FALSE otherwise.
+	 */
+	public boolean isCurrent(UndyingConfiguration config, WorldTimer worldTimer) {
+		return configRevision == config.getRevision() && worldRevision == worldTimer.getRevision();
+	}
+	
+	/**
+	 * Retrieve the server clock of the world with the given index.
+	 * @param worldIndex - the world index.
+	 * @return The server clock.
+	 */
+	public Clock getServerClock(int worldIndex) {
+		return getClock(serverClocks, worldIndex);
+	}
+	
+	/**
+	 * Retrieve the client clock of the world with the given index.
+	 * @param worldIndex - the world index.
+	 * @return The client clock.
+	 */
+	public Clock getClientClock(int worldIndex) {
+		return getClock(clientClocks, worldIndex);
+	}
+	
+	/**
+	 * Determine if any world in this snapshot has a custom client clock.
+	 * @return TRUE if any world has, FALSE otherwise.
+	 */
+	public boolean hasCustomClientClock() {
+		for (Clock clock : clientClocks) {
+			if (!clock.isDefault())
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Determine how many game ticks must elapse before the output of any custom clock has changed.
+	 * @param worldTimer - the world timer.
+	 * @param threshold - the minimum change in ticks.
+	 * @param includeClient - whether or not to include the client clocks.
+	 * @return The number of game ticks, or {@link Long#MAX_VALUE} if no custom clock will change.
+	 */
+	public long getTicksUntilChange(WorldTimer worldTimer, int threshold, boolean includeClient) {
+		long result = getTicksUntilChange(serverClocks, worldTimer, threshold);
+		
+		if (includeClient)
+			result = Math.min(result, getTicksUntilChange(clientClocks, worldTimer, threshold));
+		return result;
+	}
+	
+	private static Clock getClock(Clock[] clocks, int worldIndex) {
+		// Worlds loaded after the snapshot was taken
+		if (worldIndex < 0 || worldIndex >= clocks.length)
+			return Clock.defaultClock();
+		return clocks[worldIndex];
+	}
+	
+	private static long getTicksUntilChange(Clock[] clocks, WorldTimer worldTimer, int threshold) {
+		long result = Long.MAX_VALUE;
+		
+		for (int i = 0; i < clocks.length; i++) {
+			// Stopped clocks never change, unless they follow the wall clock
+			if (!clocks[i].isDefault()) {
+				result = Math.min(result, clocks[i].getTicksUntilChange(worldTimer.getWorldTime(i), threshold));
+			}
+		}
+		return result;
+	}
+}
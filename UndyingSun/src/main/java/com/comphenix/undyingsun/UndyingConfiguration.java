@@ -18,24 +18,53 @@
 package com.comphenix.undyingsun;
 
 import java.io.File;
+import java.util.List;
+import java.util.TimeZone;
 
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.plugin.Plugin;
 
+import com.comphenix.undyingsun.regions.ClockRegion;
 import com.comphenix.undyingsun.temporal.Clock;
 import com.comphenix.undyingsun.temporal.DaylightPreset;
+import com.comphenix.undyingsun.temporal.SolarClock;
+import com.comphenix.undyingsun.temporal.TickRate;
 import com.comphenix.undyingsun.temporal.TimeOfDay;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 
 class UndyingConfiguration {
 	private static final String CONFIG_CLIENT_CLOCK = "client";
 	private static final String CONFIG_SERVER_CLOCK = "server";
+	private static final String CONFIG_WORLDS = "worlds";
+	private static final String CONFIG_REGIONS = "regions";
+	private static final String CONFIG_PACKETS = "packets";
+	private static final String CONFIG_UPDATE_THRESHOLD = "update-threshold";
+	private static final String CONFIG_WATCH_FILE = "watch-file";
+	private static final String CONFIG_WORLD_UPDATE_BUDGET = "world-update-budget";
+	
+	// Loading packet settings
+	private static final String CONFIG_PACKETS_MAX_ERROR = "max-error";
+	
+	// Region keys
+	private static final String CONFIG_REGION_WORLD = "world";
+	private static final String CONFIG_REGION_FROM = "from";
+	private static final String CONFIG_REGION_TO = "to";
+	private static final String CONFIG_REGION_CHUNKS = "chunks";
 	
 	// Loading clock
 	private static final String CONFIG_CLOCK_SPEED = "speed";
 	private static final String CONFIG_CLOCK_TIME = "time";
 	private static final String CONFIG_CLOCK_DAYLIGHT = "daylight";
+	private static final String CONFIG_CLOCK_SOLAR = "solar";
+	
+	// Loading solar clock
+	private static final String CONFIG_SOLAR_LATITUDE = "latitude";
+	private static final String CONFIG_SOLAR_LONGITUDE = "longitude";
+	private static final String CONFIG_SOLAR_TIME_ZONE = "time-zone";
 	
 	// Loading preset
 	private static final String CONFIG_PRESET_DAY = "day";
@@ -44,20 +73,29 @@ class UndyingConfiguration {
 	private static final String CONFIG_PRESET_DAWN = "dawn";
 	
 	private Plugin plugin;
+	
+	// Writes changes in the background
+	private ConfigurationWriter writer;
+	
+	// Reloads the clocks when the file is edited, or NULL
+	private ConfigurationWatcher watcher;
 
-	// The configurations
-	private Clock serverClock;
-	private Clock clientClock;
+	// Every clock - replaced as a whole
+	private volatile ClockSettings settings = ClockSettings.defaultSettings();
 	
 	public UndyingConfiguration(Plugin plugin) {
 		this.plugin = plugin;
+		this.writer = new ConfigurationWriter(getFile(), plugin.getLogger());
 		loadConfig(false);
 	}
 
 	/**
 	 * Reload configuration file.
+	 * <p>
+	 * Any pending changes are written first.
 	 */
 	public void reloadConfig() {
+		writer.flush();
 		loadConfig(true);
 	}
 	
@@ -78,18 +116,214 @@ class UndyingConfiguration {
 			config = plugin.getConfig();
 		}
 		
-		serverClock = loadClock(config.getConfigurationSection(CONFIG_SERVER_CLOCK));
-		clientClock = loadClock(config.getConfigurationSection(CONFIG_CLIENT_CLOCK));
+		publish(loadSettings(config), true);
+		updateWatcher(config.getBoolean(CONFIG_WATCH_FILE, false));
+	}
+	
+	/**
+	 * Start or stop watching the configuration file for modifications.
+	 * @param enabled - whether or not the file should be watched.
+	 */
+	private void updateWatcher(boolean enabled) {
+		if (enabled && watcher == null) {
+			watcher = new ConfigurationWatcher(plugin, getFile(), writer, new Runnable() {
+				@Override
+				public void run() {
+					reloadClocks();
+				}
+			});
+		} else if (!enabled && watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+	}
+	
+	/**
+	 * Parse the configuration file and publish its clocks, if they have changed.
+	 * <p>
+	 * This is invoked by the watcher, off the main thread.
+	 */
+	private void reloadClocks() {
+		YamlConfiguration config = new YamlConfiguration();
+		
+		try {
+			config.load(getFile());
+		} catch (Exception e) {
+			plugin.getLogger().warning("Cannot reload " + getFile() + ": " + e.getMessage());
+			return;
+		}
+		if (publish(loadSettings(config), false)) {
+			plugin.getLogger().info("Reloaded clocks from " + getFile().getName());
+		}
+	}
+	
+	/**
+	 * Publish the given settings with a new revision.
+	 * @param loaded - the new settings.
+	 * @param force - whether or not to publish the settings if they are identical to the current settings.
+	 * @return TRUE if the settings were published, FALSE otherwise.
+	 */
+	private synchronized boolean publish(ClockSettings loaded, boolean force) {
+		ClockSettings current = settings;
+		
+		if (!force && loaded.hasSameValues(current))
+			return false;
+		settings = loaded.withRevision(current.getRevision() + 1);
+		return true;
+	}
+	
+	/**
+	 * Load every clock setting from the given configuration.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param config - the configuration.
+	 * @return The loaded settings.
+	 */
+	private ClockSettings loadSettings(ConfigurationSection config) {
+		ImmutableMap.Builder<String, Clock> server = ImmutableMap.builder();
+		ImmutableMap.Builder<String, Clock> client = ImmutableMap.builder();
+		loadWorlds(config.getConfigurationSection(CONFIG_WORLDS), server, client);
+		
+		return new ClockSettings(
+			loadClock(config.getConfigurationSection(CONFIG_SERVER_CLOCK)), 
+			loadClock(config.getConfigurationSection(CONFIG_CLIENT_CLOCK)), 
+			server.build(), 
+			client.build(), 
+			loadRegions(config.getConfigurationSection(CONFIG_REGIONS)), 
+			loadPackets(config.getConfigurationSection(CONFIG_PACKETS)), 
+			Math.max(1, config.getInt(CONFIG_UPDATE_THRESHOLD, 1)), 
+			config.getInt(CONFIG_WORLD_UPDATE_BUDGET, 0), 
+			0
+		);
+	}
+	
+	/**
+	 * Load the packet settings.
+	 * @param section - the packets section, or NULL if not present.
+	 * @return The maximum packet error.
+	 */
+	private int loadPackets(ConfigurationSection section) {
+		return section != null ? section.getInt(CONFIG_PACKETS_MAX_ERROR, 0) : 0;
+	}
+	
+	/**
+	 * Load the clocks of every individual world.
+	 * @param section - the worlds section, or NULL if not present.
+	 * @param server - the destination of the server clocks.
+	 * @param client - the destination of the client clocks.
+	 */
+	private void loadWorlds(ConfigurationSection section, 
+			ImmutableMap.Builder<String, Clock> server, ImmutableMap.Builder<String, Clock> client) {
+		if (section != null) {
+			for (String worldName : section.getKeys(false)) {
+				ConfigurationSection world = section.getConfigurationSection(worldName);
+				
+				if (world == null) {
+					plugin.getLogger().warning("Cannot load clocks of world " + worldName);
+					continue;
+				}
+				if (world.isConfigurationSection(CONFIG_SERVER_CLOCK))
+					server.put(worldName, loadClock(world.getConfigurationSection(CONFIG_SERVER_CLOCK)));
+				if (world.isConfigurationSection(CONFIG_CLIENT_CLOCK))
+					client.put(worldName, loadClock(world.getConfigurationSection(CONFIG_CLIENT_CLOCK)));
+			}
+		}
+	}
+	
+	/**
+	 * Load every region with its own client clock.
+	 * @param section - the regions section, or NULL if not present.
+	 * @return The regions, in order of precedence.
+	 */
+	private List<ClockRegion> loadRegions(ConfigurationSection section) {
+		ImmutableList.Builder<ClockRegion> regions = ImmutableList.builder();
+		
+		if (section != null) {
+			for (String name : section.getKeys(false)) {
+				try {
+					regions.add(loadRegion(name, section.getConfigurationSection(name)));
+				} catch (IllegalArgumentException e) {
+					plugin.getLogger().warning("Cannot load region " + name + ": " + e.getMessage());
+				}
+			}
+		}
+		return regions.build();
+	}
+	
+	/**
+	 * Load a region from the given section.
+	 * @param name - the name of the region.
+	 * @param section - the region section.
+	 * @return The loaded region.
+	 * @throws IllegalArgumentException If the region is invalid.
+	 */
+	private ClockRegion loadRegion(String name, ConfigurationSection section) {
+		if (section == null)
+			throw new IllegalArgumentException("Not a section.");
+		String world = section.getString(CONFIG_REGION_WORLD, null);
+		Clock clock = loadClock(section.getConfigurationSection(CONFIG_CLIENT_CLOCK));
+		
+		if (world == null)
+			throw new IllegalArgumentException("No world.");
+		
+		// A set of chunks, each as "x,z"
+		if (section.contains(CONFIG_REGION_CHUNKS)) {
+			List<String> chunks = section.getStringList(CONFIG_REGION_CHUNKS);
+			int[] chunkX = new int[chunks.size()];
+			int[] chunkZ = new int[chunks.size()];
+			
+			for (int i = 0; i < chunks.size(); i++) {
+				String[] coordinates = chunks.get(i).split(",");
+				
+				if (coordinates.length != 2)
+					throw new IllegalArgumentException("Chunk " + chunks.get(i) + " must be x,z.");
+				chunkX[i] = Integer.parseInt(coordinates[0].trim());
+				chunkZ[i] = Integer.parseInt(coordinates[1].trim());
+			}
+			return ClockRegion.fromChunks(name, world, clock, chunkX, chunkZ);
+		}
+		
+		// Or a cuboid between two corners
+		List<Integer> from = section.getIntegerList(CONFIG_REGION_FROM);
+		List<Integer> to = section.getIntegerList(CONFIG_REGION_TO);
+		
+		if (from.size() != 3 || to.size() != 3)
+			throw new IllegalArgumentException("Corners must be [x, y, z].");
+		return ClockRegion.fromCuboid(name, world, clock, 
+				from.get(0), from.get(1), from.get(2), to.get(0), to.get(1), to.get(2));
 	}
 	
 	/**
 	 * Save the current configuration.
+	 * <p>
+	 * The file is written asynchronously, and rapid changes are coalesced into a single write.
 	 */
 	public void saveConfig() {
+		ClockSettings current = settings;
+		final Clock client = current.getClientClock();
+		final Clock server = current.getServerClock();
+		
+		// Keep the loaded configuration up to date
 		FileConfiguration config = plugin.getConfig();
-		saveClock(config.createSection(CONFIG_CLIENT_CLOCK), clientClock);
-		saveClock(config.createSection(CONFIG_SERVER_CLOCK), serverClock);
-		plugin.saveConfig();
+		saveClock(config.createSection(CONFIG_CLIENT_CLOCK), client);
+		saveClock(config.createSection(CONFIG_SERVER_CLOCK), server);
+		
+		// Serialize and write the file later
+		writer.submit(new ConfigurationWriter.Change() {
+			@Override
+			public void apply(FileConfiguration config) {
+				saveClock(config.createSection(CONFIG_CLIENT_CLOCK), client);
+				saveClock(config.createSection(CONFIG_SERVER_CLOCK), server);
+			}
+		});
+	}
+	
+	/**
+	 * Write any pending changes, and stop the background writer.
+	 */
+	public void close() {
+		updateWatcher(false);
+		writer.close();
 	}
 	
 	/**
@@ -97,7 +331,7 @@ class UndyingConfiguration {
 	 * @return The fixed server time, or NULL if not fixed.
 	 */
 	public TimeOfDay getServerTime() {
-		return serverClock.getOrigin();
+		return settings.getServerClock().getOrigin();
 	}
 		
 	/**
@@ -105,7 +339,7 @@ class UndyingConfiguration {
 	 * @return The tick rate of the server.
 	 */
 	public double getServerSpeed() {
-		return serverClock.getTickRate();
+		return settings.getServerClock().getTickRate();
 	}
 	
 	/**
@@ -113,7 +347,7 @@ class UndyingConfiguration {
 	 * @return The fixed client time, or NULL if not fixed.
 	 */
 	public TimeOfDay getClientTime() {
-		return clientClock.getOrigin();
+		return settings.getClientClock().getOrigin();
 	}
 	
 	/**
@@ -121,43 +355,42 @@ class UndyingConfiguration {
 	 * @return The tick rate of the client.
 	 */
 	public double getClientSpeed() {
-		return clientClock.getTickRate();
+		return settings.getClientClock().getTickRate();
 	}
 	
 	/**
-	 * Set the current fixed server time.
-	 * @param serverTime - the new fixed server time.
+	 * Set the server clock, which may be a transition.
+	 * @param serverClock - the new server clock.
 	 */
-	public void setServerTime(TimeOfDay serverTime) {
-		this.serverClock = serverClock.withOrigin(serverTime);
+	public synchronized void setServerClock(Clock serverClock) {
+		settings = settings.withServerClock(serverClock);
 	}
 	
 	/**
-	 * Set the server time tick rate.
-	 * <p>
-	 * Use a rate of zero to lock down the time.
-	 * @param serverSpeed - the new server tick rate.
+	 * Set the client clock, which may be a transition.
+	 * @param clientClock - the new client clock.
 	 */
-	public void setServerSpeed(double serverSpeed) {
-		this.serverClock = serverClock.withSpeed(serverSpeed);
+	public synchronized void setClientClock(Clock clientClock) {
+		settings = settings.withClientClock(clientClock);
 	}
 	
 	/**
-	 * Set the current fixed client time.
-	 * @param clientTime - the new fixed client time.
+	 * Replace every clock transition that has finished with its target clock, including those of individual worlds.
+	 * <p>
+	 * This only publishes new settings if a transition has finished.
 	 */
-	public void setClientTime(TimeOfDay clientTime) {
-		this.clientClock = clientClock.withOrigin(clientTime);
+	public synchronized void collapseTransitions() {
+		settings = settings.withResolvedClocks();
 	}
-		
+	
 	/**
-	 * Set the client time tick rate.
+	 * Retrieve the current clock settings.
 	 * <p>
-	 * Use a rate of zero to lock down the time.
-	 * @param clientSpeed - the new client tick rate.
+	 * Every clock should be read from the same settings, as the settings may be replaced at any time.
+	 * @return The current settings.
 	 */
-	public void setClientSpeed(double clientSpeed) {
-		this.clientClock = clientClock.withSpeed(clientSpeed);
+	public ClockSettings getSettings() {
+		return settings;
 	}
 	
 	/**
@@ -165,7 +398,7 @@ class UndyingConfiguration {
 	 * @return Client clock.
 	 */
 	public Clock getClientClock() {
-		return clientClock;
+		return settings.getClientClock();
 	}
 	
 	/**
@@ -173,9 +406,49 @@ class UndyingConfiguration {
 	 * @return Server clock.
 	 */
 	public Clock getServerClock() {
-		return serverClock;
+		return settings.getServerClock();
+	}
+	
+	/**
+	 * Retrieve every region with its own client clock, in order of precedence.
+	 * @return The regions.
+	 */
+	public List<ClockRegion> getRegions() {
+		return settings.getRegions();
 	}
 		
+	/**
+	 * Retrieve the maximum number of ticks a client may be off by before we send a time packet.
+	 * @return The maximum error, or a negative value if every time packet should be sent.
+	 */
+	public int getMaxPacketError() {
+		return settings.getMaxPacketError();
+	}
+	
+	/**
+	 * Retrieve the minimum change in ticks of a clock before the server or player time is updated.
+	 * @return The update threshold, at least one.
+	 */
+	public int getUpdateThreshold() {
+		return settings.getUpdateThreshold();
+	}
+	
+	/**
+	 * Retrieve the maximum number of worlds whose server time is updated in a single tick.
+	 * @return The budget, or a non-positive value if there is no limit.
+	 */
+	public int getWorldUpdateBudget() {
+		return settings.getWorldUpdateBudget();
+	}
+	
+	/**
+	 * Retrieve the current revision of the clocks, which is incremented whenever a clock changes.
+	 * @return The current revision.
+	 */
+	public int getRevision() {
+		return settings.getRevision();
+	}
+	
 	/**
 	 * Retrieve a reference to the configuration file.
 	 * @return Configuration file on disk.
@@ -190,6 +463,10 @@ class UndyingConfiguration {
 	 * @param clock - the clock to save.
 	 */
 	private void saveClock(ConfigurationSection destination, Clock clock) {
+		if (clock instanceof SolarClock) {
+			saveSolarClock(destination.createSection(CONFIG_CLOCK_SOLAR), (SolarClock) clock);
+			return;
+		}
 		savePreset(
 			destination.createSection(CONFIG_CLOCK_DAYLIGHT), clock.getPreset());
 		destination.set(CONFIG_CLOCK_TIME, clock.getOrigin());
@@ -204,13 +481,56 @@ class UndyingConfiguration {
 	private Clock loadClock(ConfigurationSection section) {
 		if (section == null)
 			return Clock.defaultClock();
+		if (section.isConfigurationSection(CONFIG_CLOCK_SOLAR)) {
+			try {
+				return loadSolarClock(section.getConfigurationSection(CONFIG_CLOCK_SOLAR));
+			} catch (IllegalArgumentException e) {
+				plugin.getLogger().warning("Cannot load solar clock: " + e.getMessage());
+			}
+		}
 		
 		// Load the clock attributes
 		DaylightPreset preset = loadPreset(section.getConfigurationSection(CONFIG_CLOCK_DAYLIGHT));
 		TimeOfDay time = loadTime(section, CONFIG_CLOCK_TIME, TimeOfDay.MORNING);
 		double speed = section.getDouble(CONFIG_CLOCK_SPEED, 1.0);
 		
-		return new Clock(preset, time, speed);
+		try {
+			return new Clock(preset, time, speed);
+		} catch (IllegalArgumentException e) {
+			plugin.getLogger().warning("Cannot load speed: " + e.getMessage());
+			return new Clock(preset, time, TickRate.NORMAL);
+		}
+	}
+	
+	/**
+	 * Load a clock that follows the real sun from the given section.
+	 * @param section - the source section.
+	 * @return The loaded clock.
+	 * @throws IllegalArgumentException If the location is invalid.
+	 */
+	private SolarClock loadSolarClock(ConfigurationSection section) {
+		String zoneId = section.getString(CONFIG_SOLAR_TIME_ZONE, null);
+		TimeZone zone = zoneId != null ? TimeZone.getTimeZone(zoneId) : TimeZone.getDefault();
+		
+		// Unknown time zones are silently replaced with GMT, while custom offsets are normalized
+		if (zoneId != null && zone.getID().equals("GMT") && !zoneId.equals("GMT"))
+			throw new IllegalArgumentException("Unknown time zone " + zoneId);
+		return new SolarClock(
+			section.getDouble(CONFIG_SOLAR_LATITUDE, 0), 
+			section.getDouble(CONFIG_SOLAR_LONGITUDE, 0), 
+			zone
+		);
+	}
+	
+	/**
+	 * Save a clock that follows the real sun in the given section.
+	 * @param section - the destination section.
+	 * @param clock - the clock to save.
+	 */
+	private void saveSolarClock(ConfigurationSection section, SolarClock clock) {
+		section.set(CONFIG_SOLAR_LATITUDE, clock.getLatitude());
+		section.set(CONFIG_SOLAR_LONGITUDE, clock.getLongitude());
+		section.set(CONFIG_SOLAR_TIME_ZONE, clock.getTimeZone().getID());
 	}
 	
 	/**
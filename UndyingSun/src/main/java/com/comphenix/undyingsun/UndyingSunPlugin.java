@@ -17,20 +17,31 @@
 
 package com.comphenix.undyingsun;
 
+import java.util.List;
+
 import org.bukkit.Bukkit;
-import org.bukkit.World;
 import org.bukkit.command.PluginCommand;
 import org.bukkit.command.TabExecutor;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import com.comphenix.undyingsun.metrics.Metrics;
+import com.comphenix.undyingsun.packets.PacketSuppressor;
+import com.comphenix.undyingsun.packets.TimeContext;
 import com.comphenix.undyingsun.packets.TimeInterceptor;
-import com.comphenix.undyingsun.packets.TimeInterceptor.TimeListener;
+import com.comphenix.undyingsun.packets.TimeInterceptor.AsyncTimeListener;
+import com.comphenix.undyingsun.packets.TimeInterceptor.WorldTimeListener;
 import com.comphenix.undyingsun.packets.TimeSetter;
+import com.comphenix.undyingsun.players.PlayerClocks;
+import com.comphenix.undyingsun.players.PlayerRegions;
+import com.comphenix.undyingsun.players.PlayerSlots;
+import com.comphenix.undyingsun.regions.ClockRegion;
+import com.comphenix.undyingsun.regions.RegionIndex;
 import com.comphenix.undyingsun.temporal.Clock;
 import com.comphenix.undyingsun.temporal.TimeOfDay;
+import com.google.common.base.Ticker;
 
-public class UndyingSunPlugin extends JavaPlugin implements TimeListener {
+public class UndyingSunPlugin extends JavaPlugin implements AsyncTimeListener, WorldTimeListener {
 	public static final String PERMISSION_EXEMPT = "undyingsun.exempt";
 	
 	/**
@@ -48,44 +59,83 @@ public class UndyingSunPlugin extends JavaPlugin implements TimeListener {
 	
 	// Track the elapsed time per world
 	private WorldTimer worldTimer;
+	private ServerClockUpdater serverUpdater;
+	
+	// Per-player state
+	private PlayerSlots playerSlots;
+	private ExemptionCache exemptions;
+	private PlayerClocks playerClocks;
+	private PlayerRegions playerRegions;
+	
+	// The regions that were last compiled
+	private List<ClockRegion> compiledRegions;
 	
 	// Non-positive delay permanently disables the server clock
 	private int serverClockDelay = TICKS_PER_SECOND;
 	
 	// Packet interception
 	private TimeInterceptor interceptor;
+	private PacketSuppressor suppressor;
+	
+	// Performance counters
+	private Metrics metrics;
+	
+	// The most recent state, readable from any thread
+	private volatile TimeSnapshot snapshot;
 	
 	@Override
 	public void onEnable() {
 		// Prepare configuration
 		config = new UndyingConfiguration(this);
-		worldTimer = new WorldTimer(this);
+		worldTimer = new WorldTimer(this, getTicker());
+		serverUpdater = new ServerClockUpdater(this, worldTimer);
+		playerSlots = new PlayerSlots(this);
+		exemptions = new ExemptionCache(this, playerSlots);
+		playerClocks = new PlayerClocks(this, playerSlots);
+		playerRegions = new PlayerRegions(this, playerSlots);
+		metrics = new Metrics();
+		
+		try {
+			metrics.register();
+		} catch (Exception e) {
+			getLogger().warning("Cannot register metrics with JMX: " + e);
+		}
 		
 		// Setup command(s)
-		registerTabExecutor(CommandUndying.NAME, new CommandUndying(config));
+		registerTabExecutor(CommandUndying.NAME, new CommandUndying(config, playerClocks, metrics, getTicker()));
 		
 		// Tell the console
 		getLogger().info( "Server time: " + TimeOfDay.toTimeString(config.getServerTime()) );
 		getLogger().info( "Client time: " + TimeOfDay.toTimeString(config.getClientTime()) );
 				
-		// Setup client-side clock
-		registerPacketHandler();
-		
-		// Setup server-side clock
+		// Setup both clocks - packets are only intercepted once a client clock is needed
 		onUpdateServerTime();
 	}
 
+	/**
+	 * Install the packet handler if any client clock must be applied, or uninstall it if none must be.
+	 * <p>
+	 * Without a custom client clock, every time packet can be sent without interception.
+	 * @param current - the current snapshot.
+	 */
+	private void updatePacketHandler(TimeSnapshot current) {
+		boolean needed = current.hasCustomClientClock() || playerClocks.hasOverrides() || playerRegions.hasRegions();
+		
+		if (needed && interceptor == null) {
+			registerPacketHandler();
+		} else if (!needed && interceptor != null) {
+			unregisterPacketHandler();
+			getLogger().info("Stopped intercepting time packets.");
+		}
+		
+		if (interceptor != null) {
+			updateSuppressor();
+		}
+	}
+	
 	private void registerPacketHandler() {
 		try {
-			// Choose the correct method
-			if (getServer().getPluginManager().getPlugin("ProtocolLib") != null) {
-				interceptor = TimeInterceptor.fromProtocolLib(this);
-				getLogger().info("ProtocolLib detected!");
-			} else {
-				interceptor = TimeInterceptor.fromQueuedPackets(this);
-				getLogger().info("Intercepting packets manually.");
-			}
-			
+			interceptor = createInterceptor();
 		} catch (Exception e) {
 			// Fail gracefully
 			getLogger().warning("Cannot register packet handler. Reverting to native Bukkit.");
@@ -96,6 +146,87 @@ public class UndyingSunPlugin extends JavaPlugin implements TimeListener {
 		}
 		// Add this class as a listener
 		interceptor.addTimeListener(this);
+		interceptor.setMetrics(metrics);
+	}
+	
+	/**
+	 * Replace the packet suppressor if the maximum packet error has changed since it was created.
+	 */
+	private void updateSuppressor() {
+		// Skip packets the client can predict, if the backend can drop them safely
+		int maxError = interceptor.canSuppress() ? config.getMaxPacketError() : -1;
+		
+		if (suppressor != null && suppressor.getMaxError() == maxError)
+			return;
+		if (suppressor == null && maxError < 0)
+			return;
+		
+		if (suppressor != null) {
+			suppressor.close();
+			suppressor = null;
+		}
+		if (maxError >= 0) {
+			suppressor = new PacketSuppressor(this, playerSlots, maxError, getTicker());
+		}
+		interceptor.setSuppressor(suppressor);
+	}
+	
+	private void unregisterPacketHandler() {
+		if (interceptor != null) {
+			interceptor.close();
+			interceptor = null;
+		}
+		if (suppressor != null) {
+			suppressor.close();
+			suppressor = null;
+		}
+	}
+	
+	/**
+	 * Construct the packet interceptor best suited for the current server.
+	 * @return The packet interceptor.
+	 * @throws Exception If the interceptor cannot be constructed.
+	 */
+	TimeInterceptor createInterceptor() throws Exception {
+		// Choose the correct method
+		if (getServer().getPluginManager().getPlugin("ProtocolLib") != null) {
+			getLogger().info("ProtocolLib detected!");
+			return TimeInterceptor.fromProtocolLib(this);
+		} else if (TimeInterceptor.hasChannelPipeline()) {
+			getLogger().info("Intercepting packets in the channel pipeline.");
+			return TimeInterceptor.fromChannelPipeline(this);
+		} else if (TimeInterceptor.hasRelocatedChannelPipeline()) {
+			getLogger().warning("No packet interceptor supports the relocated Netty of this server - install ProtocolLib. " +
+				"Reverting to native Bukkit.");
+			return new TimeSetter(this);
+		} else {
+			getLogger().info("Intercepting packets manually.");
+			return TimeInterceptor.fromQueuedPackets(this);
+		}
+	}
+	
+	/**
+	 * Retrieve the monotonic source of time used by the world timer, packet suppressor and transitions.
+	 * @return The source of time.
+	 */
+	Ticker getTicker() {
+		return Ticker.systemTicker();
+	}
+	
+	/**
+	 * Retrieve the current packet interceptor.
+	 * @return The packet interceptor, or NULL if no packets are intercepted.
+	 */
+	TimeInterceptor getInterceptor() {
+		return interceptor;
+	}
+	
+	/**
+	 * Retrieve the performance counters.
+	 * @return The performance counters, or NULL if the plugin is disabled.
+	 */
+	Metrics getMetrics() {
+		return metrics;
 	}
 	
 	/**
@@ -104,16 +235,16 @@ public class UndyingSunPlugin extends JavaPlugin implements TimeListener {
 	private void onUpdateServerTime() {
 		if (serverClockDelay <= 0)
 			return;
+		long start = System.nanoTime();
 		
-		// Update the time if needed
-		if (!config.getServerClock().isDefault()) {
-			// Update all loaded worlds
-			for (World world : getServer().getWorlds()) {
-				long fullTime = worldTimer.getWorldTime(world);
-				long time = config.getServerClock().get(fullTime);
-				world.setTime(time);
-			}
-		}
+		// Transitions that have finished become plain clocks again
+		config.collapseTransitions();
+		updateRegions();
+		TimeSnapshot current = publishSnapshot();
+		updatePacketHandler(current);
+		
+		// Update every dirty world with a custom clock and players
+		int setTimeCalls = serverUpdater.update(current, config.getWorldUpdateBudget());
 		
 		// Update setter
 		if (interceptor instanceof TimeSetter) {
@@ -121,7 +252,9 @@ public class UndyingSunPlugin extends JavaPlugin implements TimeListener {
 		}
 		
 		// Speed or slow down delay
-		checkClockDelay();
+		checkClockDelay(current);
+		metrics.recordSetTime(setTimeCalls);
+		metrics.recordServerUpdate(System.nanoTime() - start);
 		
 		// Reschedule check
 		Bukkit.getScheduler().scheduleSyncDelayedTask(this, new Runnable() {
@@ -132,34 +265,111 @@ public class UndyingSunPlugin extends JavaPlugin implements TimeListener {
 		}, serverClockDelay);
 	}
 	
-	private void checkClockDelay() {
-		if (serverClockDelay > 0) {
-			// See if we really need frequent updates
-			if (hasCustomRunning(config.getClientClock()) || hasCustomRunning(config.getServerClock()) ) 
-				serverClockDelay = 1;
-			else
-				serverClockDelay = TICKS_PER_SECOND;
+	/**
+	 * Recompile the region index if the configured regions have changed.
+	 * <p>
+	 * If the regions cannot be compiled, the previous index is kept until the regions change again.
+	 */
+	private void updateRegions() {
+		List<ClockRegion> regions = config.getRegions();
+		
+		if (!regions.equals(compiledRegions)) {
+			// Never retry the same regions
+			compiledRegions = regions;
+			
+			try {
+				playerRegions.setRegions(RegionIndex.compile(regions));
+			} catch (RuntimeException e) {
+				// Must not prevent the server clock from being rescheduled
+				getLogger().warning("Cannot compile regions: " + e);
+			}
+		}
+	}
+	
+	/**
+	 * Publish the current state for the packet listeners, unless the previous snapshot is still valid.
+	 * @return The published snapshot.
+	 */
+	private TimeSnapshot publishSnapshot() {
+		TimeSnapshot current = snapshot;
+		
+		if (current == null || !current.isCurrent(config, worldTimer)) {
+			snapshot = current = TimeSnapshot.capture(config, worldTimer, getServer().getWorlds());
 		}
+		return current;
 	}
 	
-	private boolean hasCustomRunning(Clock clock) {
-		return !clock.isDefault() && clock.isRunning();
+	/**
+	 * Sleep until the earliest moment any active clock will change by the update threshold.
+	 * @param current - the current snapshot.
+	 */
+	private void checkClockDelay(TimeSnapshot current) {
+		if (serverClockDelay > 0) {
+			int threshold = config.getUpdateThreshold();
+			
+			// Client clocks only matter if we set the time of each player ourselves
+			boolean setter = interceptor instanceof TimeSetter;
+			long delay = current.getTicksUntilChange(worldTimer, threshold, setter);
+			
+			if (setter && playerClocks.hasOverrides()) {
+				for (Player player : getServer().getOnlinePlayers()) {
+					long fullTime = worldTimer.getWorldTime(player.getWorld());
+					delay = Math.min(delay, playerClocks.getTicksUntilChange(player, fullTime, threshold));
+				}
+			}
+			if (setter && playerRegions.hasRegions()) {
+				for (Player player : getServer().getOnlinePlayers()) {
+					Clock regionClock = playerRegions.getClientClock(player);
+					
+					if (regionClock != null) {
+						long fullTime = worldTimer.getWorldTime(player.getWorld());
+						delay = Math.min(delay, regionClock.getTicksUntilChange(fullTime, threshold));
+					}
+				}
+			}
+			// Continue with the remaining worlds in the next tick
+			if (serverUpdater.hasPending())
+				delay = 1;
+			
+			// Still correct the server time regularly, in case the daylight cycle is enabled
+			serverClockDelay = (int) Math.max(1, Math.min(delay, TICKS_PER_SECOND));
+		}
 	}
 	
 	@Override
-	public long onTimeSending(Player reciever, long totalTime, long relativeTime) {
-		// Only if ProtocolLib is present
-		if (!reciever.hasPermission(PERMISSION_EXEMPT)) {
-			// Change the perceived time
-			if (!config.getClientClock().isDefault()) {
-				Clock clock = config.getClientClock();
-				long fullTime = worldTimer.getWorldTime(reciever.getWorld());
+	public void onTimeSending(TimeContext context) {
+		// May be invoked from any thread - only read the snapshot
+		TimeSnapshot current = snapshot;
+		Player reciever = context.getReciever();
+		
+		if (current != null && !exemptions.isExempt(reciever)) {
+			int index = worldTimer.getIndex(reciever.getWorld());
+			
+			if (index == WorldTimer.NO_INDEX)
+				return;
+			long fullTime = worldTimer.getWorldTime(index);
+			long override = playerClocks.getTime(reciever, fullTime);
+			Clock clock = current.getClientClock(index);
+			Clock regionClock = playerRegions.getClientClock(reciever);
+			
+			// Regions take precedence over the world
+			if (regionClock != null)
+				clock = regionClock;
+			
+			// Individual players take precedence
+			if (override != PlayerClocks.NO_OVERRIDE) {
+				context.setRelativeTime(PlayerClocks.getTimeOfDay(override), PlayerClocks.isRunning(override));
 				
-				// The gamerule doDaylightCycle is encoded in the sign bit
-				return clock.get(fullTime) * (clock.isRunning() ? 1 : -1);
+			} else if (regionClock != null || !clock.isDefault()) {
+				context.setRelativeTime(clock.get(fullTime), clock.isRunning());
 			}
 		}
-		return relativeTime;
+	}
+	
+	@Override
+	public boolean isPlayerSpecific(Player reciever) {
+		return exemptions.isExempt(reciever) || playerClocks.hasOverride(reciever) || 
+			   playerRegions.hasRegion(reciever);
 	}
 	
 	private void registerTabExecutor(String name, TabExecutor executor) {
@@ -171,16 +381,42 @@ public class UndyingSunPlugin extends JavaPlugin implements TimeListener {
 	@Override
 	public void onDisable() {
 		// Clean up
-		if (interceptor != null) {
-			interceptor.close();
-			interceptor = null;
-		}
+		unregisterPacketHandler();
 		if (worldTimer != null) {
 			worldTimer.close();
 			worldTimer = null;
 		}
+		if (exemptions != null) {
+			exemptions.close();
+			exemptions = null;
+		}
+		if (playerClocks != null) {
+			playerClocks.close();
+			playerClocks = null;
+		}
+		if (playerRegions != null) {
+			playerRegions.close();
+			playerRegions = null;
+		}
+		if (playerSlots != null) {
+			playerSlots.close();
+			playerSlots = null;
+		}
+		if (config != null) {
+			config.close();
+			config = null;
+		}
+		if (metrics != null) {
+			try {
+				metrics.unregister();
+			} catch (Exception e) {
+				getLogger().warning("Cannot unregister metrics: " + e);
+			}
+			metrics = null;
+		}
 		
 		// Cancel server update
 		serverClockDelay = 0;
+		snapshot = null;
 	}
 }
\ No newline at end of file
@@ -1,6 +1,9 @@
 package com.comphenix.undyingsun;
 
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.bukkit.Server;
 import org.bukkit.World;
@@ -11,22 +14,58 @@ import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.plugin.Plugin;
 
+import com.google.common.base.Ticker;
 import com.google.common.collect.Maps;
 
 /**
  * Represents a class that keeps track of the total elapsed time per world.
+ * <p>
+ * Every loaded world is assigned a small index. The elapsed time of each world is computed once 
+ * per tick from a monotonic clock, and can be read from any thread.
  * @author Kristian
  */
 class WorldTimer {
 	/**
-	 * The default number of milliseconds per tick.
+	 * Represents a world that has not been loaded.
 	 */
-	private static final int MILLISECONDS_PER_TICK = 50;
+	public static final int NO_INDEX = -1;
 	
-	private Map<World, Long> initialTime = Maps.newConcurrentMap();
+	/**
+	 * The default number of nanoseconds per tick.
+	 */
+	private static final long NANOSECONDS_PER_TICK = 50000000L;
+	
+	private final Server server;
+	private final Ticker ticker;
+	
+	// World indices by identity - replaced on every change
+	private volatile Map<World, Integer> indices = Collections.emptyMap();
+	private final BitSet used = new BitSet();
+	
+	// The monotonic tick at which each world had an elapsed time of zero
+	private long[] origins = new long[0];
+	
+	// Elapsed ticks per world index, computed every tick
+	private volatile AtomicLongArray elapsed = new AtomicLongArray(0);
+	
+	// Incremented whenever a world is loaded or unloaded
+	private volatile int revision;
+	
+	// The update task
+	private int updateTask = -1;
 	
 	public WorldTimer(Plugin plugin) {
-		final Server server = plugin.getServer();	
+		this(plugin, Ticker.systemTicker());
+	}
+	
+	/**
+	 * Construct a new world timer.
+	 * @param plugin - the owner plugin.
+	 * @param ticker - the monotonic source of time, in nanoseconds.
+	 */
+	public WorldTimer(Plugin plugin, Ticker ticker) {
+		this.server = plugin.getServer();
+		this.ticker = ticker;
 
 		// Register world tracking
 		server.getPluginManager().registerEvents(new Listener() {
@@ -45,53 +84,159 @@ class WorldTimer {
 		for (World world : server.getWorlds()) {
 			handleLoaded(world);
 		}
+		
+		updateTask = server.getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+			@Override
+			public void run() {
+				update();
+			}
+		}, 1, 1);
+	}
+	
+	/**
+	 * Retrieve the index of the given world.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param world - the world.
+	 * @return The index of the world, or {@link #NO_INDEX} if it has not been loaded.
+	 */
+	public int getIndex(World world) {
+		Integer index = indices.get(world);
+		return index != null ? index : NO_INDEX;
 	}
 	
 	/**
 	 * Retrieve the current time of a world in ticks.
+	 * <p>
+	 * This method is thread-safe. Worlds that have not been loaded yet report their full time.
 	 * @param world - the world to check.
 	 * @return The current time.
 	 */
 	public long getWorldTime(World world) {
-		if (!initialTime.containsKey(world))
-			handleLoaded(world);
-		return currentTimeTicks() - initialTime.get(world);
+		int index = getIndex(world);
+		
+		if (index == NO_INDEX)
+			return world.getFullTime();
+		return getWorldTime(index);
+	}
+	
+	/**
+	 * Retrieve the current time of a world in ticks.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param index - the index of the world.
+	 * @return The current time.
+	 */
+	public long getWorldTime(int index) {
+		return elapsed.get(index);
+	}
+	
+	/**
+	 * Recompute the elapsed time of every world.
+	 * <p>
+	 * This must be called on the main thread.
+	 */
+	public synchronized void update() {
+		long now = currentTimeTicks();
+		AtomicLongArray current = elapsed;
+		
+		for (int i = 0; i < origins.length; i++) {
+			current.lazySet(i, now - origins[i]);
+		}
 	}
 	
 	/**
 	 * Handle a loaded world.
 	 * @param world - the world that have loaded.
 	 */
-	private void handleLoaded(World world) {
-		// Save the time (measured since 1970) the world started
-		initialTime.put(world, currentTimeTicks() - world.getFullTime());
+	private synchronized void handleLoaded(World world) {
+		if (indices.containsKey(world))
+			return;
+		int index = used.nextClearBit(0);
+		used.set(index);
+		
+		if (index >= origins.length) {
+			long[] copy = new long[index + 1];
+			System.arraycopy(origins, 0, copy, 0, origins.length);
+			origins = copy;
+		}
+		// Save the monotonic tick the world started
+		origins[index] = currentTimeTicks() - world.getFullTime();
+		
+		Map<World, Integer> copy = Maps.newIdentityHashMap();
+		copy.putAll(indices);
+		copy.put(world, index);
+		publish(copy);
 	}
 	
 	/**
 	 * Handle an unloaded world. 
 	 * @param world - the unloaded world.
 	 */
-	private void handleUnloaded(World world) {
-		Long time = initialTime.remove(world);
+	private synchronized void handleUnloaded(World world) {
+		Integer index = indices.get(world);
 		
-		if (time != null) {
+		if (index != null) {
 			// Save the correct elapsed time
-			world.setFullTime(currentTimeTicks() - time);
+			world.setFullTime(currentTimeTicks() - origins[index]);
+			used.clear(index);
+			
+			Map<World, Integer> copy = Maps.newIdentityHashMap();
+			copy.putAll(indices);
+			copy.remove(world);
+			publish(copy);
 		}
 	}
+	
+	/**
+	 * Publish a new set of world indices, along with their elapsed time.
+	 * @param worlds - the new world indices.
+	 */
+	private void publish(Map<World, Integer> worlds) {
+		AtomicLongArray next = new AtomicLongArray(origins.length);
+		long now = currentTimeTicks();
+		
+		for (int i = 0; i < origins.length; i++) {
+			next.set(i, now - origins[i]);
+		}
+		elapsed = next;
+		indices = Collections.unmodifiableMap(worlds);
+		revision++;
+	}
+	
+	/**
+	 * Retrieve one more than the highest world index in use.
+	 * @return The number of indices.
+	 */
+	public synchronized int getCapacity() {
+		return origins.length;
+	}
+	
+	/**
+	 * Retrieve the current revision, which is incremented whenever a world is loaded or unloaded.
+	 * @return The current revision.
+	 */
+	public int getRevision() {
+		return revision;
+	}
 
 	/**
 	 * Clear all resources.
 	 */
-	public void close() {
-		initialTime.clear();
+	public synchronized void close() {
+		if (updateTask >= 0) {
+			server.getScheduler().cancelTask(updateTask);
+			updateTask = -1;
+		}
+		indices = Collections.emptyMap();
+		used.clear();
 	}
 	
 	/**
-	 * Retrieve the current time in game ticks since 1. January 1970.
-	 * @return Number of ticks since that date.
+	 * Retrieve the current time in game ticks, measured from an arbitrary monotonic origin.
+	 * @return Number of ticks since the origin.
 	 */
 	private long currentTimeTicks() {
-		return System.currentTimeMillis() / MILLISECONDS_PER_TICK;
+		return ticker.read() / NANOSECONDS_PER_TICK;
 	}
 }
@@ -0,0 +1,103 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.metrics;
+
+/**
+ * Represents a histogram of durations in nanoseconds, with a bucket for each power of two.
+ * @author Kristian
+ */
+public class LatencyHistogram {
+	/**
+	 * The number of buckets. Bucket N contains durations less than 2^N, but not less than 2^(N-1).
+	 */
+	private static final int BUCKETS = 64;
+	
+	// Every bucket, followed by the total duration
+	private static final int TOTAL = BUCKETS;
+	
+	private final StripedCounters counters = new StripedCounters(BUCKETS + 1);
+	
+	/**
+	 * Record a single duration.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param nanos - the duration in nanoseconds. Negative values are treated as zero.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counters.increment(BUCKETS - Long.numberOfLeadingZeros(nanos));
+		counters.add(TOTAL, nanos);
+	}
+	
+	/**
+	 * Retrieve the number of recorded durations.
+	 * @return The number of durations.
+	 */
+	public long getCount() {
+		long result = 0;
+		
+		for (int i = 0; i < BUCKETS; i++) {
+			result += counters.sum(i);
+		}
+		return result;
+	}
+	
+	/**
+	 * Retrieve the sum of every recorded duration.
+	 * @return The total duration in nanoseconds.
+	 */
+	public long getTotal() {
+		return counters.sum(TOTAL);
+	}
+	
+	/**
+	 * Retrieve the mean duration.
+	 * @return The mean duration in nanoseconds, or zero if nothing has been recorded.
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count > 0 ? getTotal() / (double) count : 0;
+	}
+	
+	/**
+	 * Retrieve an upper bound of the given percentile.
+	 * @param percentile - the percentile, from 0 to 1.
+	 * @return The upper bound of the bucket containing the percentile in nanoseconds, or zero if nothing has been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 1)
+			throw new IllegalArgumentException("percentile must be between 0 and 1.");
+		long[] buckets = new long[BUCKETS];
+		long count = 0;
+		
+		for (int i = 0; i < BUCKETS; i++) {
+			count += buckets[i] = counters.sum(i);
+		}
+		long target = (long) Math.ceil(percentile * count);
+		long seen = 0;
+		
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			
+			if (seen >= target && seen > 0)
+				return i < BUCKETS - 1 ? (1L << i) - 1 : Long.MAX_VALUE;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.comphenix.undyingsun.metrics.PacketCounters.Event;
+import com.google.common.collect.Maps;
+
+/**
+ * Records the cost of intercepting time packets and updating the server clock.
+ * <p>
+ * Every recording method is thread-safe, and never blocks.
+ * @author Kristian
+ */
+public class Metrics implements MetricsMBean {
+	/**
+	 * The name of the registered MBean.
+	 */
+	public static final String OBJECT_NAME = "com.comphenix.undyingsun:type=Metrics";
+	
+	// Indices in the general counters
+	private static final int SYNC_HOPS = 0;
+	private static final int SET_TIME_CALLS = 1;
+	private static final int PLAYER_TIME_CALLS = 2;
+	
+	private final ConcurrentMap<String, PacketCounters> packets = Maps.newConcurrentMap();
+	private final StripedCounters counters = new StripedCounters(3);
+	
+	private final LatencyHistogram listenerTime = new LatencyHistogram();
+	private final LatencyHistogram serverUpdateTime = new LatencyHistogram();
+	
+	// The registered MBean, or NULL
+	private ObjectName registeredName;
+	
+	/**
+	 * Retrieve the packet counters of the given backend, creating them if necessary.
+	 * @param backend - the name of the backend.
+	 * @return The packet counters.
+	 */
+	public PacketCounters getPacketCounters(String backend) {
+		PacketCounters result = packets.get(backend);
+		
+		if (result == null) {
+			PacketCounters created = new PacketCounters(backend);
+			result = packets.putIfAbsent(backend, created);
+			
+			if (result == null)
+				result = created;
+		}
+		return result;
+	}
+	
+	/**
+	 * Retrieve the packet counters of every backend that has been used.
+	 * @return Every packet counter.
+	 */
+	public Collection<PacketCounters> getPacketCounters() {
+		return Collections.unmodifiableCollection(packets.values());
+	}
+	
+	/**
+	 * Record the time spent invoking the time listeners for a single packet.
+	 * @param nanos - the duration in nanoseconds.
+	 */
+	public void recordListenerTime(long nanos) {
+		listenerTime.record(nanos);
+	}
+	
+	/**
+	 * Record that the time listeners had to be invoked on the main thread.
+	 */
+	public void recordSyncHop() {
+		counters.increment(SYNC_HOPS);
+	}
+	
+	/**
+	 * Record the time spent updating the server clock in a single tick.
+	 * @param nanos - the duration in nanoseconds.
+	 */
+	public void recordServerUpdate(long nanos) {
+		serverUpdateTime.record(nanos);
+	}
+	
+	/**
+	 * Record a number of calls to World.setTime().
+	 * @param calls - the number of calls.
+	 */
+	public void recordSetTime(int calls) {
+		counters.add(SET_TIME_CALLS, calls);
+	}
+	
+	/**
+	 * Record a call to Player.setPlayerTime() or Player.resetPlayerTime().
+	 */
+	public void recordPlayerTime() {
+		counters.increment(PLAYER_TIME_CALLS);
+	}
+	
+	/**
+	 * Retrieve the time spent invoking the time listeners.
+	 * @return The listener histogram.
+	 */
+	public LatencyHistogram getListenerTime() {
+		return listenerTime;
+	}
+	
+	/**
+	 * Retrieve the time spent updating the server clock.
+	 * @return The server update histogram.
+	 */
+	public LatencyHistogram getServerUpdateTime() {
+		return serverUpdateTime;
+	}
+	
+	private long sumPackets(Event event) {
+		long result = 0;
+		
+		for (PacketCounters counter : packets.values()) {
+			result += counter.get(event);
+		}
+		return result;
+	}
+	
+	@Override
+	public long getPacketsSeen() {
+		return sumPackets(Event.SEEN);
+	}
+	
+	@Override
+	public long getPacketsRewritten() {
+		return sumPackets(Event.REWRITTEN);
+	}
+	
+	@Override
+	public long getPacketsSuppressed() {
+		return sumPackets(Event.SUPPRESSED);
+	}
+	
+	@Override
+	public long getPacketsFailed() {
+		return sumPackets(Event.FAILED);
+	}
+	
+	@Override
+	public long getListenerInvocations() {
+		return listenerTime.getCount();
+	}
+	
+	@Override
+	public double getListenerMeanNanos() {
+		return listenerTime.getMean();
+	}
+	
+	@Override
+	public long getListenerP99Nanos() {
+		return listenerTime.getPercentile(0.99);
+	}
+	
+	@Override
+	public long getSyncHops() {
+		return counters.sum(SYNC_HOPS);
+	}
+	
+	@Override
+	public long getServerUpdates() {
+		return serverUpdateTime.getCount();
+	}
+	
+	@Override
+	public double getServerUpdateMeanNanos() {
+		return serverUpdateTime.getMean();
+	}
+	
+	@Override
+	public long getServerUpdateP99Nanos() {
+		return serverUpdateTime.getPercentile(0.99);
+	}
+	
+	@Override
+	public long getSetTimeCalls() {
+		return counters.sum(SET_TIME_CALLS);
+	}
+	
+	@Override
+	public long getPlayerTimeCalls() {
+		return counters.sum(PLAYER_TIME_CALLS);
+	}
+	
+	/**
+	 * Register these metrics with the platform MBean server.
+	 * @throws JMException If the registration failed.
+	 */
+	public synchronized void register() throws JMException {
+		if (registeredName == null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			
+			// Replace the metrics of a previous instance of the plugin
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(this, name);
+			registeredName = name;
+		}
+	}
+	
+	/**
+	 * Unregister these metrics from the platform MBean server, if registered.
+	 * @throws JMException If the metrics could not be unregistered.
+	 */
+	public synchronized void unregister() throws JMException {
+		if (registeredName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+			registeredName = null;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.metrics;
+
+/**
+ * The management interface of {@link Metrics}.
+ * <p>
+ * Packet counts are summed over every packet backend.
+ * @author Kristian
+ */
+public interface MetricsMBean {
+	public long getPacketsSeen();
+	public long getPacketsRewritten();
+	public long getPacketsSuppressed();
+	public long getPacketsFailed();
+	
+	public long getListenerInvocations();
+	public double getListenerMeanNanos();
+	public long getListenerP99Nanos();
+	public long getSyncHops();
+	
+	public long getServerUpdates();
+	public double getServerUpdateMeanNanos();
+	public long getServerUpdateP99Nanos();
+	public long getSetTimeCalls();
+	public long getPlayerTimeCalls();
+}
@@ -0,0 +1,84 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.metrics;
+
+/**
+ * Counts the time packets processed by a single packet backend.
+ * @author Kristian
+ */
+public class PacketCounters {
+	/**
+	 * Represents the outcome of processing a time packet.
+	 * @author Kristian
+	 */
+	public enum Event {
+		/**
+		 * A time packet was intercepted.
+		 */
+		SEEN,
+		
+		/**
+		 * The time in the packet was changed by a listener.
+		 */
+		REWRITTEN,
+		
+		/**
+		 * The packet was not sent, as the client can predict it.
+		 */
+		SUPPRESSED,
+		
+		/**
+		 * The packet could not be processed.
+		 */
+		FAILED;
+	}
+	
+	private final String backend;
+	private final StripedCounters counters = new StripedCounters(Event.values().length);
+	
+	PacketCounters(String backend) {
+		this.backend = backend;
+	}
+	
+	/**
+	 * Retrieve the name of the packet backend.
+	 * @return The backend.
+	 */
+	public String getBackend() {
+		return backend;
+	}
+	
+	/**
+	 * Record that the given event occured.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param event - the event.
+	 */
+	public void record(Event event) {
+		counters.increment(event.ordinal());
+	}
+	
+	/**
+	 * Retrieve the number of times the given event has occured.
+	 * @param event - the event.
+	 * @return The number of occurances.
+	 */
+	public long get(Event event) {
+		return counters.sum(event.ordinal());
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Represents a fixed number of counters that can be incremented by many threads without contention.
+ * <p>
+ * Each counter is split into stripes, and each thread only adds to the stripe selected by its ID. 
+ * The stripes of a counter are summed when it is read, so reads are comparatively expensive.
+ * @author Kristian
+ */
+public class StripedCounters {
+	/**
+	 * The number of longs in a typical cache line.
+	 */
+	private static final int LONGS_PER_LINE = 8;
+	
+	/**
+	 * The maximum number of stripes.
+	 */
+	private static final int MAX_STRIPES = 64;
+	
+	private final AtomicLongArray cells;
+	private final int counters;
+	
+	// Distance between each stripe, padded to a full cache line
+	private final int stride;
+	private final int stripeMask;
+	
+	/**
+	 * Construct a new set of counters.
+	 * @param counters - the number of counters.
+	 */
+	public StripedCounters(int counters) {
+		if (counters <= 0)
+			throw new IllegalArgumentException("counters must be positive.");
+		int stripes = 1;
+		
+		// Round up to the nearest power of two
+		while (stripes < MAX_STRIPES && stripes < 2 * Runtime.getRuntime().availableProcessors()) {
+			stripes <<= 1;
+		}
+		this.counters = counters;
+		this.stride = ((counters + LONGS_PER_LINE - 1) / LONGS_PER_LINE) * LONGS_PER_LINE;
+		this.stripeMask = stripes - 1;
+		this.cells = new AtomicLongArray(stride * stripes);
+	}
+	
+	/**
+	 * Add the given value to a counter.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param counter - the index of the counter.
+	 * @param delta - the value to add.
+	 */
+	public void add(int counter, long delta) {
+		int stripe = (int) Thread.currentThread().getId() & stripeMask;
+		cells.getAndAdd(stripe * stride + counter, delta);
+	}
+	
+	/**
+	 * Increment a counter by one.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param counter - the index of the counter.
+	 */
+	public void increment(int counter) {
+		add(counter, 1);
+	}
+	
+	/**
+	 * Retrieve the current value of a counter.
+	 * <p>
+	 * The value is not an atomic snapshot if the counter is being modified concurrently.
+	 * @param counter - the index of the counter.
+	 * @return The sum of every stripe.
+	 */
+	public long sum(int counter) {
+		long result = 0;
+		
+		for (int i = counter; i < cells.length(); i += stride) {
+			result += cells.get(i);
+		}
+		return result;
+	}
+	
+	/**
+	 * Retrieve the number of counters.
+	 * @return The number of counters.
+	 */
+	public int getCounters() {
+		return counters;
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.packets;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.Plugin;
+
+import com.comphenix.undyingsun.metrics.PacketCounters.Event;
+import com.google.common.collect.Maps;
+
+/**
+ * Intercepts time packets with an outbound handler in the channel pipeline of each player.
+ * <p>
+ * This requires a server that uses Netty for its network connections. Packets are rewritten in place 
+ * on the event loop of each channel, before they are encoded.
+ * @author Kristian
+ */
+class InterceptorChannelPipeline extends TimeInterceptor implements Listener {
+	/**
+	 * The name of our handler in the channel pipeline.
+	 */
+	private static final String HANDLER_NAME = "undying_sun_time";
+	
+	/**
+	 * The name of the handler that processes packets in the server pipeline.
+	 */
+	private static final String PACKET_HANDLER_NAME = "packet_handler";
+	
+	/**
+	 * The simple name of the time packet class.
+	 */
+	private static final String TIME_PACKET_NAME = "PacketPlayOutUpdateTime";
+	
+	/**
+	 * Rewrites the time packets sent to a single player.
+	 * @author Kristian
+	 */
+	class TimeHandler extends ChannelOutboundHandlerAdapter {
+		private final Player player;
+		private final Channel channel;
+		
+		public TimeHandler(Player player, Channel channel) {
+			this.player = player;
+			this.channel = channel;
+		}
+		
+		@Override
+		public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+			TimePacketAccessor current = accessor;
+			
+			if (current != null && current.isTimePacket(msg)) {
+				recordPacket(Event.SEEN);
+				
+				try {
+					long relativeTime = current.getRelativeTime(msg);
+					long processedTime = invokeListeners(player, current.getTotalTime(msg), relativeTime);
+					
+					// Pretend the packet was sent
+					if (isRedundant(player, processedTime)) {
+						recordPacket(Event.SUPPRESSED);
+						promise.setSuccess();
+						return;
+					}
+					if (processedTime != relativeTime) {
+						current.setRelativeTime(msg, processedTime);
+						recordPacket(Event.REWRITTEN);
+					}
+				} catch (Exception e) {
+					// Clean up, but still send the packet
+					recordPacket(Event.FAILED);
+					e.printStackTrace();
+					uninjectPlayer(player);
+				}
+			}
+			super.write(ctx, msg, promise);
+		}
+		
+		/**
+		 * Remove this handler from the channel pipeline.
+		 */
+		public void remove() {
+			channel.eventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					ChannelPipeline pipeline = channel.pipeline();
+					
+					if (pipeline.get(HANDLER_NAME) == TimeHandler.this) {
+						pipeline.remove(TimeHandler.this);
+					}
+				}
+			});
+		}
+	}
+	
+	// Method for injecting players
+	private Method getHandleMethod;
+	private Field connectionField;
+	private Field networkField;
+	private Field channelField;
+	
+	// The time packet class and its fields
+	private volatile TimePacketAccessor accessor;
+	
+	// Every injected player - replaced when the interceptor is closed
+	private volatile ConcurrentMap<UUID, TimeHandler> handlers = Maps.newConcurrentMap();
+	private volatile boolean closed;
+	
+	public InterceptorChannelPipeline(Plugin plugin) {
+		super(plugin);
+		plugin.getServer().getPluginManager().registerEvents(this, plugin);
+		
+		// Handle existing players
+		for (Player player : plugin.getServer().getOnlinePlayers()) {
+			try {
+				injectPlayer(player);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Construct an interceptor for the given time packet class, where channels are injected by the caller.
+	 * @param plugin - the owner plugin.
+	 * @param packetClass - the time packet class.
+	 */
+	InterceptorChannelPipeline(Plugin plugin, Class<?> packetClass) {
+		super(plugin);
+		this.accessor = TimePacketAccessor.fromClass(packetClass);
+	}
+	
+	private void injectPlayer(Player player) throws Exception {
+		if (closed || !player.isOnline())
+			return;
+		Object nmsPlayer = getNmsPlayer(player);
+		
+		// The packet is located in the same package as the player
+		if (accessor == null) {
+			Class<?> playerClass = nmsPlayer.getClass();
+			accessor = TimePacketAccessor.fromPackage(
+				playerClass.getClassLoader(), playerClass.getPackage().getName(), TIME_PACKET_NAME);
+			
+			if (accessor == null)
+				throw new IllegalStateException("Cannot find " + TIME_PACKET_NAME + " in " + playerClass.getPackage());
+		}
+		
+		if (connectionField == null)
+			connectionField = Reflection.getField(nmsPlayer, nmsPlayer.getClass(), "playerConnection");
+		Object connection = connectionField.get(nmsPlayer);
+		
+		if (networkField == null)
+			networkField = Reflection.getField(connection, connection.getClass(), "networkManager");
+		Object networkManager = networkField.get(connection);
+		
+		if (channelField == null)
+			channelField = Reflection.getFieldByType(networkManager.getClass(), Channel.class);
+		injectChannel(player, (Channel) channelField.get(networkManager));
+	}
+	
+	/**
+	 * Add a time handler for the given player to its channel pipeline.
+	 * <p>
+	 * The handler is removed when the channel is closed, even if the player never quits.
+	 * @param player - the player.
+	 * @param channel - the channel of the player.
+	 * @return The added handler.
+	 */
+	TimeHandler injectChannel(final Player player, Channel channel) {
+		final TimeHandler handler = new TimeHandler(player, channel);
+		ConcurrentMap<UUID, TimeHandler> current = handlers;
+		register(current, player.getUniqueId(), handler);
+		
+		addHandler(channel.pipeline(), handler);
+		
+		// Forget the player when the connection is lost
+		channel.closeFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				unregister(player.getUniqueId(), handler);
+			}
+		});
+		
+		// We may have been closed in the meantime
+		if (current != handlers)
+			handler.remove();
+		return handler;
+	}
+	
+	/**
+	 * Add the given handler to a pipeline, replacing any handler with the same name.
+	 * <p>
+	 * The handler of a closed interceptor, or of a previous instance of this plugin, is removed 
+	 * asynchronously by the event loop, and may still be present.
+	 * @param pipeline - the channel pipeline.
+	 * @param handler - the new handler.
+	 */
+	private void addHandler(ChannelPipeline pipeline, TimeHandler handler) {
+		while (true) {
+			try {
+				if (pipeline.get(HANDLER_NAME) != null)
+					pipeline.replace(HANDLER_NAME, HANDLER_NAME, handler);
+				else if (pipeline.get(PACKET_HANDLER_NAME) != null)
+					// Process packets before they are encoded
+					pipeline.addBefore(PACKET_HANDLER_NAME, HANDLER_NAME, handler);
+				else
+					pipeline.addLast(HANDLER_NAME, handler);
+				return;
+			} catch (NoSuchElementException e) {
+				// Removed by the event loop in the meantime - try again
+			}
+		}
+	}
+	
+	/**
+	 * Register the given handler, replacing the handler of a previous session of the same player.
+	 * <p>
+	 * A player may disconnect without a quit event, and log in again before the channel has been closed.
+	 * @param current - the registry.
+	 * @param id - the unique ID of the player.
+	 * @param handler - the new handler.
+	 * @throws IllegalArgumentException If the same session has already been injected.
+	 */
+	private void register(ConcurrentMap<UUID, TimeHandler> current, UUID id, TimeHandler handler) {
+		TimeHandler previous;
+		
+		while ((previous = current.putIfAbsent(id, handler)) != null) {
+			// Cannot inject twice
+			if (previous.player == handler.player && previous.player.isOnline())
+				throw new IllegalArgumentException("Cannot inject " + previous.player + " twice");
+			
+			if (current.replace(id, previous, handler)) {
+				previous.remove();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Remove the given handler, unless it has already been replaced.
+	 * @param id - the unique ID of the player.
+	 * @param handler - the handler to remove.
+	 */
+	private void unregister(UUID id, TimeHandler handler) {
+		if (handlers.remove(id, handler)) {
+			handler.remove();
+		}
+	}
+	
+	/**
+	 * Remove the handler of the given player.
+	 * <p>
+	 * This method is thread-safe, and will not affect a later session of the same player.
+	 * @param player - the player to uninject.
+	 */
+	private void uninjectPlayer(Player player) {
+		UUID id = player.getUniqueId();
+		TimeHandler handler = handlers.get(id);
+		
+		if (handler != null && handler.player == player) {
+			unregister(id, handler);
+		}
+	}
+	
+	private Object getNmsPlayer(Player player) throws Exception {
+		if (getHandleMethod == null) {
+			getHandleMethod = Reflection.getMethod(0, Modifier.STATIC, player.getClass(), "getHandle");
+		}
+		return getHandleMethod.invoke(player);
+	}
+	
+	@Override
+	public String getName() {
+		return "ChannelPipeline";
+	}
+	
+	@Override
+	public void close() {
+		HandlerList.unregisterAll(this);
+		closed = true;
+		
+		// Detach the registry before removing every handler
+		ConcurrentMap<UUID, TimeHandler> previous = handlers;
+		handlers = Maps.newConcurrentMap();
+		
+		for (TimeHandler handler : previous.values()) {
+			handler.remove();
+		}
+	}
+	
+	@EventHandler(priority = EventPriority.LOWEST)
+	public void onPlayerJoin(PlayerJoinEvent e) {
+		try {
+			injectPlayer(e.getPlayer());
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+	
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(PlayerQuitEvent e) {
+		uninjectPlayer(e.getPlayer());
+	}
+}
@@ -26,6 +26,7 @@ import com.comphenix.protocol.events.PacketAdapter;
 import com.comphenix.protocol.events.PacketEvent;
 import com.comphenix.protocol.events.PacketListener;
 import com.comphenix.protocol.reflect.StructureModifier;
+import com.comphenix.undyingsun.metrics.PacketCounters.Event;
 
 class InterceptorProtocolLib extends TimeInterceptor {
 	// The current listener
@@ -48,16 +49,31 @@ class InterceptorProtocolLib extends TimeInterceptor {
 				final StructureModifier<Long> longs = event.getPacket().getLongs();
 				long totalTime = longs.read(0);
 				long relativeTime = longs.read(1);
+				recordPacket(Event.SEEN);
 				
 				try {
-					longs.write(1, invokeListeners(event.getPlayer(), totalTime, relativeTime));
+					long processedTime = invokeListeners(event.getPlayer(), totalTime, relativeTime);
+					
+					if (isRedundant(event.getPlayer(), processedTime)) {
+						event.setCancelled(true);
+						recordPacket(Event.SUPPRESSED);
+					} else if (processedTime != relativeTime) {
+						longs.write(1, processedTime);
+						recordPacket(Event.REWRITTEN);
+					}
 				} catch (Exception e) {
+					recordPacket(Event.FAILED);
 					throw new RuntimeException("Unable to process time packet.", e);
 				}
 			}
 		};
 	}
 	
+	@Override
+	public String getName() {
+		return "ProtocolLib";
+	}
+	
 	@Override
 	public void close() {
 		if (listener != null) {
@@ -23,7 +23,9 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Collection;
 import java.util.List;
-import javax.annotation.Nullable;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
 
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
@@ -34,12 +36,12 @@ import org.bukkit.event.player.PlayerLoginEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.Plugin;
 
-import com.google.common.base.Function;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Collections2;
+import com.comphenix.undyingsun.UndyingSunPlugin;
+import com.comphenix.undyingsun.metrics.PacketCounters.Event;
 import com.google.common.collect.ForwardingList;
-import com.google.common.collect.Multimap;
-import com.google.common.primitives.Primitives;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 // You can do most of this already with setPlayerTime(), but you end up with a slightly annoying
 // "wobbling" of the sun/moon as you cannot stop the passage of time on the client without 
@@ -100,6 +102,72 @@ class InterceptorQueuedPackets extends TimeInterceptor implements Listener {
 		}
 	}
 	
+	/**
+	 * Represents the proxy lists installed for a single player.
+	 * <p>
+	 * The injection may be reverted by any thread, but only once.
+	 * @author Kristian
+	 */
+	private static class Injection {
+		private final Player player;
+		private final List<FieldSetter> revertOperations = Lists.newArrayListWithCapacity(2);
+		private boolean reverted;
+		
+		public Injection(Player player) {
+			this.player = player;
+		}
+		
+		/**
+		 * Retrieve the injected player.
+		 * @return The player.
+		 */
+		public Player getPlayer() {
+			return player;
+		}
+		
+		/**
+		 * Apply the given field operation, and remember how to revert it.
+		 * <p>
+		 * The operation is reverted immediately if this injection has already been reverted.
+		 * @param setter - the field operation.
+		 */
+		public synchronized void apply(FieldSetter setter) {
+			FieldSetter revert = setter.apply();
+			
+			if (reverted)
+				revert.apply();
+			else
+				revertOperations.add(revert);
+		}
+		
+		/**
+		 * Retrieve the operations that will revert this injection.
+		 * @return The revert operations.
+		 */
+		public synchronized List<FieldSetter> getRevertOperations() {
+			return ImmutableList.copyOf(revertOperations);
+		}
+		
+		/**
+		 * Revert every field operation, unless they have already been reverted.
+		 */
+		public synchronized void revert() {
+			if (!reverted) {
+				reverted = true;
+				
+				for (FieldSetter setter : revertOperations) {
+					setter.apply();
+				}
+				revertOperations.clear();
+			}
+		}
+	}
+	
+	/**
+	 * The number of ticks between each scan for players that disconnected without quitting.
+	 */
+	private static final int RECLAIM_DELAY = 30 * UndyingSunPlugin.TICKS_PER_SECOND;
+	
 	// Method for injecting players
 	private Method getHandleMethod;
 	private Field connectionField;
@@ -107,50 +175,88 @@ class InterceptorQueuedPackets extends TimeInterceptor implements Listener {
 	private Field highPriorityQueueField;
 	private Field lowPriorityQueueField;
 
-	// Packet fields
-	private Field fullTimeField;
-	private Field relativeTimeField;
+	/**
+	 * The simple name of the time packet class.
+	 */
+	private static final String TIME_PACKET_NAME = "Packet4UpdateTime";
+	
+	// The time packet class and its fields
+	private volatile TimePacketAccessor accessor;
 	
-	// The packet class
-	private Class<?> timePacket;
-	private Multimap<Player, FieldSetter> revertOperations = ArrayListMultimap.create();
+	// Every injected player - replaced when the interceptor is closed
+	private volatile ConcurrentMap<UUID, Injection> injections = Maps.newConcurrentMap();
+	private volatile boolean closed;
+	
+	// Reclaims players that never fired a quit event
+	private int reclaimTask = -1;
 	
 	// Whether or not we have detected interfering plugins
 	private boolean detectedInterference;
 	
 	public InterceptorQueuedPackets(Plugin plugin) {
+		this(plugin, null);
+		
+		// Handle existing players
+		for (Player player : plugin.getServer().getOnlinePlayers()) {
+			try {
+				injectPlayer(player);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+ 	}
+	
+	/**
+	 * Construct an interceptor for the given time packet class, where existing players are injected by the caller.
+	 * @param plugin - the owner plugin.
+	 * @param packetClass - the time packet class, or NULL to detect it during injection.
+	 */
+	InterceptorQueuedPackets(Plugin plugin, Class<?> packetClass) {
 		// Register this as a listener
 		super(plugin);
 		plugin.getServer().getPluginManager().registerEvents(this, plugin);
- 	}
+		
+		if (packetClass != null)
+			this.accessor = TimePacketAccessor.fromClass(packetClass);
+		
+		reclaimTask = plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+			@Override
+			public void run() {
+				reclaimOffline();
+			}
+		}, RECLAIM_DELAY, RECLAIM_DELAY);
+	}
 
 	/**
 	 * Invoked when we have intercepted a packet.
+	 * @param player - the receiving player.
 	 * @param packet - the packet to intercept.
+	 * @return The packet to send.
 	 */
 	private Object interceptPacket(Player player, Object packet) {
-		Class<?> clazz = packet.getClass();
+		TimePacketAccessor current = accessor;
 		
-		if (timePacket == null && clazz.getSimpleName().equals("Packet4UpdateTime")) {
-			timePacket = clazz;
+		// Fall back to the class name if the packet was not found during injection
+		if (current == null) {
+			if (packet == null || !packet.getClass().getSimpleName().equals(TIME_PACKET_NAME))
+				return packet;
+			accessor = current = TimePacketAccessor.fromClass(packet.getClass());
 		}
-		if (timePacket != null && timePacket.isAssignableFrom(clazz)) {
-			// Setup fields
-			for (Field field : timePacket.getDeclaredFields()) {
-				if (Primitives.unwrap(field.getType()).equals(long.class)) {
-					if (fullTimeField == null)
-						fullTimeField = field;
-					else
-						relativeTimeField = field;
-				}
-			}
+		
+		if (current.isTimePacket(packet)) {
+			recordPacket(Event.SEEN);
 			
 			try {
-				relativeTimeField.set(packet, invokeListeners(
-					player, fullTimeField.getLong(packet), relativeTimeField.getLong(packet)
-				));
+				long relativeTime = current.getRelativeTime(packet);
+				long processedTime = invokeListeners(player, current.getTotalTime(packet), relativeTime);
+				
+				if (processedTime != relativeTime) {
+					current.setRelativeTime(packet, processedTime);
+					recordPacket(Event.REWRITTEN);
+				}
 			} catch (Exception e) {
 				// Clean up
+				recordPacket(Event.FAILED);
 				e.printStackTrace();
 				uninjectPlayer(player);
 			}
@@ -160,12 +266,17 @@ class InterceptorQueuedPackets extends TimeInterceptor implements Listener {
 	
 	@SuppressWarnings("unchecked")
 	private void injectPlayer(Player player) throws Exception {
-		// Cannot inject twice
-		if (revertOperations.containsKey(player))
-			throw new IllegalArgumentException("Cannot inject "+ player + "twice");
-		
+		if (closed || !player.isOnline())
+			return;
 		Object nmsPlayer = getNmsPlayer(player);
 		
+		// The packet is located in the same package as the player
+		if (accessor == null) {
+			Class<?> playerClass = nmsPlayer.getClass();
+			accessor = TimePacketAccessor.fromPackage(
+				playerClass.getClassLoader(), playerClass.getPackage().getName(), TIME_PACKET_NAME);
+		}
+		
 		if (connectionField == null)
 			connectionField = Reflection.getField(nmsPlayer, nmsPlayer.getClass(), "playerConnection");
 		Object connection = connectionField.get(nmsPlayer);
@@ -181,18 +292,73 @@ class InterceptorQueuedPackets extends TimeInterceptor implements Listener {
 		List<Object> highPriorityQueue = (List<Object>) highPriorityQueueField.get(networkManager);
 		List<Object> lowPriorityQueue = (List<Object>) lowPriorityQueueField.get(networkManager);
 		
+		Injection injection = new Injection(player);
+		ConcurrentMap<UUID, Injection> current = injections;
+		register(current, player.getUniqueId(), injection);
+		
 		// Proxy the lists
-		revertOperations.put(player, 
-			FieldSetter.from(highPriorityQueueField, networkManager, new ProxyList(player, highPriorityQueue)).apply()
-		);
-		revertOperations.put(player, 
-			FieldSetter.from(lowPriorityQueueField, networkManager, new ProxyList(player, lowPriorityQueue)).apply()
-		);
+		injection.apply(FieldSetter.from(highPriorityQueueField, networkManager, new ProxyList(player, highPriorityQueue)));
+		injection.apply(FieldSetter.from(lowPriorityQueueField, networkManager, new ProxyList(player, lowPriorityQueue)));
+		
+		// We may have been closed in the meantime
+		if (current != injections)
+			injection.revert();
 	}
 	
+	/**
+	 * Register the given injection, replacing the injection of a previous session of the same player.
+	 * <p>
+	 * A player may disconnect without a quit event, and log in again before the stale injection is reclaimed.
+	 * @param current - the registry.
+	 * @param id - the unique ID of the player.
+	 * @param injection - the new injection.
+	 * @throws IllegalArgumentException If the same session has already been injected.
+	 */
+	private void register(ConcurrentMap<UUID, Injection> current, UUID id, Injection injection) {
+		Injection previous;
+		
+		while ((previous = current.putIfAbsent(id, injection)) != null) {
+			Player previousPlayer = previous.getPlayer();
+			
+			// Cannot inject twice
+			if (previousPlayer == injection.getPlayer() && previousPlayer.isOnline())
+				throw new IllegalArgumentException("Cannot inject " + previousPlayer + " twice");
+			
+			if (current.replace(id, previous, injection)) {
+				previous.revert();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Revert the injection of the given player.
+	 * <p>
+	 * This method is thread-safe, and will not affect a later session of the same player.
+	 * @param player - the player to uninject.
+	 */
 	private void uninjectPlayer(Player player) {
-		for (FieldSetter setter : revertOperations.removeAll(player)) {
-			setter.apply();
+		ConcurrentMap<UUID, Injection> current = injections;
+		UUID id = player.getUniqueId();
+		Injection injection = current.get(id);
+		
+		if (injection != null && injection.getPlayer() == player && current.remove(id, injection)) {
+			injection.revert();
+		}
+	}
+	
+	/**
+	 * Uninject every player that is no longer online.
+	 */
+	private void reclaimOffline() {
+		ConcurrentMap<UUID, Injection> current = injections;
+		
+		for (Entry<UUID, Injection> entry : current.entrySet()) {
+			Injection injection = entry.getValue();
+			
+			if (!injection.getPlayer().isOnline() && current.remove(entry.getKey(), injection)) {
+				injection.revert();
+			}
 		}
 	}
 	
@@ -203,16 +369,36 @@ class InterceptorQueuedPackets extends TimeInterceptor implements Listener {
 		return getHandleMethod.invoke(player);
 	}
 	
+	@Override
+	public String getName() {
+		return "QueuedPackets";
+	}
+	
+	@Override
+	public boolean canSuppress() {
+		// The network manager has already counted the packet towards its send queue limit
+		return false;
+	}
+	
 	@Override
 	public void close() {
 		// Clear as a listener
 		HandlerList.unregisterAll(this);
+		closed = true;
+		
+		if (reclaimTask >= 0) {
+			plugin.getServer().getScheduler().cancelTask(reclaimTask);
+			reclaimTask = -1;
+		}
+		
+		// Detach the registry, so concurrent uninjections don't contend with the revert
+		ConcurrentMap<UUID, Injection> previous = injections;
+		injections = Maps.newConcurrentMap();
 		
 		// Revert all proxy lists
-		for (FieldSetter setter : revertOperations.values()) {
-			setter.apply();
+		for (Injection injection : previous.values()) {
+			injection.revert();
 		}
-		revertOperations.clear();
 	}
 	
 	@EventHandler
@@ -236,8 +422,13 @@ class InterceptorQueuedPackets extends TimeInterceptor implements Listener {
 			Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
 				@Override
 				public void run() {
+					Injection injection = injections.get(player.getUniqueId());
+					
+					if (injection == null || injection.getPlayer() != player)
+						return;
+					
 					// Check every field
-					for (FieldSetter setter : revertOperations.get(player)) {
+					for (FieldSetter setter : injection.getRevertOperations()) {
 						try {
 							if (setter.getCreationValue() != setter.getCurrentValue()) {
 								detectInterference(setter);
@@ -270,7 +461,7 @@ class InterceptorQueuedPackets extends TimeInterceptor implements Listener {
 	 * Represents a list that intercepts all insertions.
 	 * @author Kristian
 	 */
-	private class ProxyList extends ForwardingList<Object> {
+	class ProxyList extends ForwardingList<Object> {
 		private Player player;
 		private List<Object> original;
 
@@ -310,12 +501,13 @@ class InterceptorQueuedPackets extends TimeInterceptor implements Listener {
 		}
 		
 		private Collection<Object> process(Collection<? extends Object> iterable) {
-			return Collections2.transform(iterable, new Function<Object, Object>() {
-				@Override
-				public Object apply(@Nullable Object packet) {
-					return interceptPacket(player, packet);
-				}
-			});
+			// Copy the result, so each packet is only processed once
+			List<Object> result = Lists.newArrayListWithCapacity(iterable.size());
+			
+			for (Object packet : iterable) {
+				result.add(interceptPacket(player, packet));
+			}
+			return result;
 		}
 	}
 }
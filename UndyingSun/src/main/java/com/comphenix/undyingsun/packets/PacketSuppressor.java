@@ -0,0 +1,245 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.packets;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerPortalEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.plugin.Plugin;
+
+import com.comphenix.undyingsun.players.PlayerSlots;
+import com.google.common.base.Ticker;
+
+/**
+ * Determines if a time packet can be skipped, because the client is able to predict its content.
+ * <p>
+ * A client advances its own time by one tick per tick while the daylight cycle is running, and keeps 
+ * it fixed otherwise. We remember the last time sent to each player, and skip any packet that is 
+ * within a given error of what the client will display anyway.
+ * @author Kristian
+ */
+public class PacketSuppressor implements Listener {
+	/**
+	 * The number of ticks per day.
+	 */
+	private static final int TICKS_PER_DAY = 24000;
+	
+	/**
+	 * The default number of nanoseconds per tick.
+	 */
+	private static final long NANOSECONDS_PER_TICK = 50000000L;
+	
+	/**
+	 * Always send a packet after this many ticks, in case the client has lost track.
+	 */
+	private static final long REFRESH_TICKS = 10 * 20;
+	
+	// Layout of each entry - zero if nothing has been sent
+	private static final int RUNNING_BIT = 1 << 15;
+	private static final int TIME_MASK = RUNNING_BIT - 1;
+	private static final int TICK_SHIFT = 16;
+	
+	private final PlayerSlots slots;
+	private final int maxError;
+	private final Ticker ticker;
+	
+	// The monotonic origin of every tick
+	private final long startTime;
+	
+	// The last sent time and tick per player slot
+	private volatile AtomicLongArray sent = new AtomicLongArray(16);
+	
+	/**
+	 * Construct a new packet suppressor.
+	 * @param plugin - the parent plugin.
+	 * @param slots - the player slots.
+	 * @param maxError - the maximum number of ticks the client may be off by.
+	 */
+	public PacketSuppressor(Plugin plugin, PlayerSlots slots, int maxError) {
+		this(plugin, slots, maxError, Ticker.systemTicker());
+	}
+	
+	/**
+	 * Construct a new packet suppressor that measures ticks with the given source of time.
+	 * @param plugin - the parent plugin.
+	 * @param slots - the player slots.
+	 * @param maxError - the maximum number of ticks the client may be off by.
+	 * @param ticker - the monotonic source of time.
+	 */
+	public PacketSuppressor(Plugin plugin, PlayerSlots slots, int maxError, Ticker ticker) {
+		if (maxError < 0)
+			throw new IllegalArgumentException("maxError cannot be negative.");
+		this.slots = slots;
+		this.maxError = maxError;
+		this.ticker = ticker;
+		this.startTime = ticker.read();
+		plugin.getServer().getPluginManager().registerEvents(this, plugin);
+	}
+	
+	/**
+	 * Determine if the given time packet can be skipped, and if not, record it as sent.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param player - the receiving player.
+	 * @param relativeTime - the relative time in the packet, see {@link TimeContext#isRunning(long)}.
+	 * @return TRUE if the packet should be skipped, FALSE if it must be sent.
+	 */
+	public boolean isRedundant(Player player, long relativeTime) {
+		int slot = slots.getSlot(player);
+		
+		if (slot == PlayerSlots.NO_SLOT)
+			return false;
+		boolean running = TimeContext.isRunning(relativeTime);
+		long timeOfDay = TimeContext.getTimeOfDay(relativeTime);
+		AtomicLongArray current = getSent(slot);
+		long tick = currentTick();
+		long previous = current.get(slot);
+		
+		if (previous != 0) {
+			long previousTick = previous >>> TICK_SHIFT;
+			boolean previousRunning = (previous & RUNNING_BIT) != 0;
+			long predicted = previous & TIME_MASK;
+			
+			if (previousRunning) 
+				predicted += tick - previousTick;
+			
+			// Only skip if the client will display the same daylight cycle
+			if (tick - previousTick < REFRESH_TICKS && previousRunning == running &&
+					distance(predicted, timeOfDay) <= maxError) {
+				return true;
+			}
+		}
+		current.set(slot, encode(tick, timeOfDay, running));
+		return false;
+	}
+	
+	/**
+	 * Forget the last time sent to the given player, so the next packet is always sent.
+	 * @param player - the player.
+	 */
+	public void reset(Player player) {
+		int slot = slots.getSlot(player);
+		AtomicLongArray current = sent;
+		
+		if (slot != PlayerSlots.NO_SLOT && slot < current.length()) {
+			current.set(slot, 0);
+		}
+	}
+	
+	// The client discards its time in each of these cases
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(PlayerJoinEvent e) {
+		reset(e.getPlayer());
+	}
+	
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerRespawn(PlayerRespawnEvent e) {
+		reset(e.getPlayer());
+	}
+	
+	// The time of the new world is sent before PlayerChangedWorldEvent, so reset before the player is moved
+	@EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+	public void onPlayerTeleport(PlayerTeleportEvent e) {
+		resetOnWorldChange(e);
+	}
+	
+	@EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+	public void onPlayerPortal(PlayerPortalEvent e) {
+		resetOnWorldChange(e);
+	}
+	
+	private void resetOnWorldChange(PlayerTeleportEvent e) {
+		Location from = e.getFrom();
+		Location to = e.getTo();
+		
+		if (from == null || to == null || from.getWorld() != to.getWorld()) {
+			reset(e.getPlayer());
+		}
+	}
+	
+	/**
+	 * Retrieve the maximum number of ticks the client may be off by.
+	 * @return The maximum error in ticks.
+	 */
+	public int getMaxError() {
+		return maxError;
+	}
+	
+	/**
+	 * Stop tracking players.
+	 */
+	public void close() {
+		HandlerList.unregisterAll(this);
+	}
+	
+	/**
+	 * Retrieve the sent times, growing them to include the given slot if necessary.
+	 * @param slot - the slot.
+	 * @return The sent times.
+	 */
+	private AtomicLongArray getSent(int slot) {
+		AtomicLongArray current = sent;
+		return slot < current.length() ? current : grow(slot);
+	}
+	
+	private synchronized AtomicLongArray grow(int slot) {
+		AtomicLongArray current = sent;
+		
+		if (slot >= current.length()) {
+			AtomicLongArray copy = new AtomicLongArray(Math.max(slot + 1, current.length() * 2));
+			
+			for (int i = 0; i < current.length(); i++) {
+				copy.set(i, current.get(i));
+			}
+			sent = current = copy;
+		}
+		return current;
+	}
+	
+	private long encode(long tick, long timeOfDay, boolean running) {
+		return (tick << TICK_SHIFT) | (running ? RUNNING_BIT : 0) | timeOfDay;
+	}
+	
+	/**
+	 * Retrieve the shortest distance between two times of day.
+	 * @param a - the first time.
+	 * @param b - the second time.
+	 * @return The distance in ticks.
+	 */
+	private long distance(long a, long b) {
+		long difference = Math.abs(a - b) % TICKS_PER_DAY;
+		return Math.min(difference, TICKS_PER_DAY - difference);
+	}
+	
+	/**
+	 * Retrieve the current tick, which is always positive.
+	 * @return The current tick.
+	 */
+	private long currentTick() {
+		return (ticker.read() - startTime) / NANOSECONDS_PER_TICK + 1;
+	}
+}
@@ -78,4 +78,23 @@ class Reflection {
 			return getField(instance, clazz.getSuperclass(), fieldName);
 		throw new IllegalStateException("Unable to find field " + fieldName + " in " + instance);
 	}
+	
+	/**
+	 * Search for the first publically and privately defined field that can hold the given type.
+	 * @param clazz - the class to start with.
+	 * @param fieldType - the type of the field.
+	 * @return The first field of this type.
+	 * @throws IllegalStateException If we cannot find this field.
+	 */
+	public static Field getFieldByType(Class<?> clazz, Class<?> fieldType) {
+		for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+			for (Field field : current.getDeclaredFields()) {
+				if (fieldType.isAssignableFrom(field.getType())) {
+					field.setAccessible(true);
+					return field;
+				}
+			}
+		}
+		throw new IllegalStateException("Unable to find field of type " + fieldType + " in " + clazz);
+	}
 }
@@ -0,0 +1,131 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.packets;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Represents a time packet that is being sent to a player.
+ * <p>
+ * A context is reused for every packet processed on the same thread, so listeners must not retain it.
+ * @author Kristian
+ */
+public final class TimeContext {
+	/**
+	 * The number of ticks per day.
+	 */
+	private static final int TICKS_PER_DAY = 24000;
+	
+	private Player reciever;
+	private long totalTime;
+	private long relativeTime;
+	
+	TimeContext() {
+		// Only created by the interceptor
+	}
+	
+	/**
+	 * Prepare this context for a new packet.
+	 * @param reciever - the receiving player.
+	 * @param totalTime - the total time of the world.
+	 * @param relativeTime - the relative time.
+	 * @return This context, for chaining.
+	 */
+	TimeContext reset(Player reciever, long totalTime, long relativeTime) {
+		this.reciever = reciever;
+		this.totalTime = totalTime;
+		this.relativeTime = relativeTime;
+		return this;
+	}
+	
+	/**
+	 * Retrieve the player that is receiving the packet.
+	 * @return The receiving player.
+	 */
+	public Player getReciever() {
+		return reciever;
+	}
+	
+	/**
+	 * Retrieve the total time of the world.
+	 * @return The total time.
+	 */
+	public long getTotalTime() {
+		return totalTime;
+	}
+	
+	/**
+	 * Retrieve the relative time that will be sent, as modified by the previous listeners.
+	 * <p>
+	 * The time is negative if the daylight cycle is stopped, see {@link #isRunning(long)}.
+	 * @return The relative time.
+	 */
+	public long getRelativeTime() {
+		return relativeTime;
+	}
+	
+	/**
+	 * Set the relative time that will be sent.
+	 * @param relativeTime - the new relative time.
+	 */
+	public void setRelativeTime(long relativeTime) {
+		this.relativeTime = relativeTime;
+	}
+	
+	/**
+	 * Set the relative time that will be sent, along with whether or not the daylight cycle is running.
+	 * @param timeOfDay - the time of day, from 0 to 23999.
+	 * @param running - whether or not the daylight cycle is running.
+	 */
+	public void setRelativeTime(long timeOfDay, boolean running) {
+		this.relativeTime = encodeTime(timeOfDay, running);
+	}
+	
+	/**
+	 * Encode the given time of day as the relative time of a packet.
+	 * <p>
+	 * The client stops the daylight cycle if the relative time is negative. A stopped clock at zero 
+	 * has no sign, so it is sent as minus a full day instead.
+	 * @param timeOfDay - the time of day, from 0 to 23999.
+	 * @param running - whether or not the daylight cycle is running.
+	 * @return The relative time.
+	 */
+	public static long encodeTime(long timeOfDay, boolean running) {
+		if (running)
+			return timeOfDay;
+		return timeOfDay != 0 ? -timeOfDay : -TICKS_PER_DAY;
+	}
+	
+	/**
+	 * Determine if the daylight cycle is running in the given relative time of a packet.
+	 * @param relativeTime - the relative time.
+	 * @return TRUE if it is, FALSE otherwise.
+	 */
+	public static boolean isRunning(long relativeTime) {
+		return relativeTime >= 0;
+	}
+	
+	/**
+	 * Retrieve the time of day in the given relative time of a packet.
+	 * @param relativeTime - the relative time.
+	 * @return The time of day, from 0 to 23999.
+	 */
+	public static long getTimeOfDay(long relativeTime) {
+		return Math.abs(relativeTime) % TICKS_PER_DAY;
+	}
+}
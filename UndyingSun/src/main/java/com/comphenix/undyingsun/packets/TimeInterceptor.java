@@ -17,13 +17,15 @@
 
 package com.comphenix.undyingsun.packets;
 
-import java.util.List;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventPriority;
 import org.bukkit.plugin.Plugin;
 
-import com.google.common.collect.Lists;
+import com.comphenix.undyingsun.metrics.Metrics;
+import com.comphenix.undyingsun.metrics.PacketCounters;
 
 /**
  * Intercept the time before it is transmitted to the client.
@@ -33,15 +35,124 @@ public abstract class TimeInterceptor {
 	public interface TimeListener {
 		/**
 		 * Invoked when a player is recieving a time update packet.
+		 * <p>
+		 * The context is reused, and must not be retained after this method returns.
+		 * @param context - the packet being sent.
+		 */
+		public void onTimeSending(TimeContext context);
+	}
+	
+	/**
+	 * Represents a time listener that is thread-safe, and may be invoked directly on any thread.
+	 * @author Kristian
+	 */
+	public interface AsyncTimeListener extends TimeListener {
+		// Marker interface
+	}
+	
+	/**
+	 * Represents a time listener that usually computes the same time for every player in a world.
+	 * <p>
+	 * This allows the time to be computed once per world, instead of once per player.
+	 * @author Kristian
+	 */
+	public interface WorldTimeListener extends TimeListener {
+		/**
+		 * Determine if the given player may perceive a different time than the rest of its world.
 		 * @param reciever - the receiving player.
-		 * @param totalTime - the total time.
-		 * @param relativeTime - the relative time.
-		 * @return The new relative time to send.
+		 * @return TRUE if it may, FALSE if it perceives the same time as every other such player in its world.
+		 */
+		public boolean isPlayerSpecific(Player reciever);
+	}
+	
+	/**
+	 * An immutable list of listeners, sorted by priority.
+	 * @author Kristian
+	 */
+	private static class Registry {
+		private static final Registry EMPTY = new Registry(new TimeListener[0], new EventPriority[0]);
+		
+		private final TimeListener[] listeners;
+		private final EventPriority[] priorities;
+		
+		// Whether or not every listener can be invoked off the main thread
+		private final boolean async;
+		
+		public Registry(TimeListener[] listeners, EventPriority[] priorities) {
+			boolean result = true;
+			
+			for (TimeListener listener : listeners) {
+				result &= listener instanceof AsyncTimeListener;
+			}
+			this.listeners = listeners;
+			this.priorities = priorities;
+			this.async = result;
+		}
+		
+		/**
+		 * Construct a copy of this registry with the given listener.
+		 * <p>
+		 * The listener is added after every listener with the same or a lower priority.
+		 * @param listener - the new listener.
+		 * @param priority - its priority.
+		 * @return The new registry.
 		 */
-		public long onTimeSending(Player reciever, long totalTime, long relativeTime);
+		public Registry withListener(TimeListener listener, EventPriority priority) {
+			int index = 0;
+			
+			while (index < priorities.length && priorities[index].ordinal() <= priority.ordinal()) {
+				index++;
+			}
+			TimeListener[] copyListeners = new TimeListener[listeners.length + 1];
+			EventPriority[] copyPriorities = new EventPriority[priorities.length + 1];
+			
+			System.arraycopy(listeners, 0, copyListeners, 0, index);
+			System.arraycopy(priorities, 0, copyPriorities, 0, index);
+			copyListeners[index] = listener;
+			copyPriorities[index] = priority;
+			System.arraycopy(listeners, index, copyListeners, index + 1, listeners.length - index);
+			System.arraycopy(priorities, index, copyPriorities, index + 1, priorities.length - index);
+			return new Registry(copyListeners, copyPriorities);
+		}
+		
+		/**
+		 * Construct a copy of this registry without the first occurance of the given listener.
+		 * @param listener - the listener to remove.
+		 * @return The new registry, or this registry if the listener is not present.
+		 */
+		public Registry withoutListener(TimeListener listener) {
+			int index = Arrays.asList(listeners).indexOf(listener);
+			
+			if (index < 0)
+				return this;
+			TimeListener[] copyListeners = new TimeListener[listeners.length - 1];
+			EventPriority[] copyPriorities = new EventPriority[priorities.length - 1];
+			
+			System.arraycopy(listeners, 0, copyListeners, 0, index);
+			System.arraycopy(priorities, 0, copyPriorities, 0, index);
+			System.arraycopy(listeners, index + 1, copyListeners, index, copyListeners.length - index);
+			System.arraycopy(priorities, index + 1, copyPriorities, index, copyPriorities.length - index);
+			return new Registry(copyListeners, copyPriorities);
+		}
 	}
 	
-	protected List<TimeListener> timeListeners = Lists.newArrayList();
+	// Replaced on every modification - readers never lock
+	private volatile Registry registry = Registry.EMPTY;
+	
+	// The context used by each thread
+	private final ThreadLocal<TimeContext> contexts = new ThreadLocal<TimeContext>() {
+		@Override
+		protected TimeContext initialValue() {
+			return new TimeContext();
+		}
+	};
+	
+	// Skips packets the client can predict, or NULL
+	private volatile PacketSuppressor suppressor;
+	
+	// Performance counters, or NULL
+	private volatile Metrics metrics;
+	private volatile PacketCounters packetCounters;
 	protected Plugin plugin;
 	
 	public TimeInterceptor( Plugin plugin) {
@@ -49,57 +160,174 @@ public abstract class TimeInterceptor {
 	}
 	
 	/**
-	 * Add a new time listener.
+	 * Add a new time listener with normal priority.
 	 * @param listener - the listener to add.
 	 */
 	public void addTimeListener(TimeListener listener) {
-		timeListeners.add(listener);
+		addTimeListener(listener, EventPriority.NORMAL);
+	}
+	
+	/**
+	 * Add a new time listener.
+	 * <p>
+	 * Listeners with a lower priority are invoked first, so higher priorities have the final say.
+	 * @param listener - the listener to add.
+	 * @param priority - the priority of the listener.
+	 */
+	public synchronized void addTimeListener(TimeListener listener, EventPriority priority) {
+		if (listener == null)
+			throw new IllegalArgumentException("listener cannot be NULL.");
+		if (priority == null)
+			throw new IllegalArgumentException("priority cannot be NULL.");
+		registry = registry.withListener(listener, priority);
 	}
 	
 	/**
 	 * Remove an existing time listener.
 	 * @param listener - the listener to remove.
 	 */
-	public void removeTimeListener(TimeListener listener) {
-		timeListeners.remove(listener);
+	public synchronized void removeTimeListener(TimeListener listener) {
+		registry = registry.withoutListener(listener);
+	}
+	
+	/**
+	 * Determine if every listener would compute the same time for the given player as the rest of its world.
+	 * @param reciever - the receiving player.
+	 * @return TRUE if the time computed for this player can be shared, FALSE otherwise.
+	 */
+	protected boolean isWorldShared(Player reciever) {
+		for (TimeListener listener : registry.listeners) {
+			if (!(listener instanceof WorldTimeListener) || 
+				((WorldTimeListener) listener).isPlayerSpecific(reciever)) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
 	/**
 	 * Invoke every listener with the given parameters.
 	 * <p>
-	 * This method is thread-safe.
+	 * This method is thread-safe. Listeners that are not marked as {@link AsyncTimeListener} 
+	 * will be invoked on the main thread, blocking the calling thread until the next tick.
 	 * @param reciever - the player reciever.
 	 * @param totalTime - the total time.
 	 * @param relativeTime - the relative time.
 	 * @return The modified relative time.
 	 */
-	protected long invokeListeners(final Player reciever, final long totalTime, final long relativeTime) throws Exception {
+	protected long invokeListeners(Player reciever, long totalTime, long relativeTime) throws Exception {
+		final Registry current = registry;
+		
+		// Nothing to do
+		if (current.listeners.length == 0)
+			return relativeTime;
+		final TimeContext context = contexts.get().reset(reciever, totalTime, relativeTime);
+		Metrics currentMetrics = metrics;
+		long start = currentMetrics != null ? System.nanoTime() : 0;
+		
 		// Handle method calls from other threads
-		if (Bukkit.isPrimaryThread()) {
-			return processListeners(reciever, totalTime, relativeTime);
+		if (current.async || Bukkit.isPrimaryThread()) {
+			processListeners(current, context);
 		} else {
-			return Bukkit.getScheduler().callSyncMethod(plugin, new Callable<Long>() {
+			if (currentMetrics != null)
+				currentMetrics.recordSyncHop();
+			
+			// The calling thread is blocked, so the main thread may use its context
+			Bukkit.getScheduler().callSyncMethod(plugin, new Callable<TimeContext>() {
 				@Override
-				public Long call() throws Exception {
-					return processListeners(reciever, totalTime, relativeTime);
+				public TimeContext call() throws Exception {
+					return processListeners(current, context);
 				}
 			}).get();
 		}
+		if (currentMetrics != null)
+			currentMetrics.recordListenerTime(System.nanoTime() - start);
+		return context.getRelativeTime();
 	}
 	
 	/**
-	 * Invoke every listener with the given parameters.
-	 * @param reciever - the recieving player.
-	 * @param totalTime - the total time of the world.
-	 * @param relativeTime - the relative time for this player.
-	 * @return The processed relative time.
-	 */
-	private long processListeners(Player reciever, final long totalTime, long relativeTime) {
-		// Process on each listener
-		for (TimeListener listener : timeListeners) {
-			relativeTime = listener.onTimeSending(reciever, totalTime, relativeTime);
+	 * Invoke every listener with the given context.
+	 * @param current - the listeners to invoke.
+	 * @param context - the packet context.
+	 * @return The processed context.
+	 */
+	private static TimeContext processListeners(Registry current, TimeContext context) {
+		TimeListener[] listeners = current.listeners;
+		
+		// Skip the loop in the common case
+		if (listeners.length == 1) {
+			listeners[0].onTimeSending(context);
+		} else {
+			for (TimeListener listener : listeners) {
+				listener.onTimeSending(context);
+			}
 		}
-		return relativeTime;
+		return context;
+	}
+	
+	/**
+	 * Set the suppressor that determines which time packets can be skipped.
+	 * @param suppressor - the new suppressor, or NULL to send every packet.
+	 */
+	public void setSuppressor(PacketSuppressor suppressor) {
+		this.suppressor = suppressor;
+	}
+	
+	/**
+	 * Set the metrics that will record the packets processed by this interceptor.
+	 * @param metrics - the new metrics, or NULL to disable recording.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.packetCounters = metrics != null ? metrics.getPacketCounters(getName()) : null;
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Record the outcome of processing a time packet.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param event - the outcome.
+	 */
+	protected void recordPacket(PacketCounters.Event event) {
+		PacketCounters current = packetCounters;
+		
+		if (current != null)
+			current.record(event);
+	}
+	
+	/**
+	 * Retrieve the metrics that record the work done by this interceptor.
+	 * @return The metrics, or NULL if recording is disabled.
+	 */
+	protected Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Retrieve the name of this packet backend.
+	 * @return The name of the backend.
+	 */
+	public abstract String getName();
+	
+	/**
+	 * Determine if this interceptor is able to skip time packets without side effects.
+	 * @return TRUE if it is, FALSE otherwise.
+	 */
+	public boolean canSuppress() {
+		return true;
+	}
+	
+	/**
+	 * Determine if a time packet with the given relative time can be skipped, and record it as sent if not.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param reciever - the receiving player.
+	 * @param relativeTime - the processed relative time.
+	 * @return TRUE if the packet should be skipped, FALSE otherwise.
+	 */
+	protected boolean isRedundant(Player reciever, long relativeTime) {
+		PacketSuppressor current = suppressor;
+		return current != null && current.isRedundant(reciever, relativeTime);
 	}
 	
 	/**
@@ -124,4 +352,47 @@ public abstract class TimeInterceptor {
 	public static TimeInterceptor fromQueuedPackets(Plugin plugin) {
 		return new InterceptorQueuedPackets(plugin);
 	}
+	
+	/**
+	 * Determine if the server uses Netty for its network connections.
+	 * <p>
+	 * Only Netty in its original package is supported, as in Minecraft 1.8 and later.
+	 * @return TRUE if it does, FALSE otherwise.
+	 * @see #hasRelocatedChannelPipeline()
+	 */
+	public static boolean hasChannelPipeline() {
+		return hasServerClass("io.netty.channel.Channel");
+	}
+	
+	/**
+	 * Determine if the server uses a relocated copy of Netty, as CraftBukkit 1.7 does.
+	 * <p>
+	 * Neither the channel pipeline nor the queued packet interceptor supports such a server.
+	 * @return TRUE if it does, FALSE otherwise.
+	 */
+	public static boolean hasRelocatedChannelPipeline() {
+		return hasServerClass("net.minecraft.util.io.netty.channel.Channel");
+	}
+	
+	private static boolean hasServerClass(String name) {
+		try {
+			Class.forName(name, false, Bukkit.getServer().getClass().getClassLoader());
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Construct a new time interceptor that adds a handler to the channel pipeline of each player.
+	 * <p>
+	 * This requires {@link #hasChannelPipeline()}.
+	 * @param plugin - the current plugin.
+	 * @return The new time interceptor.
+	 */
+	public static TimeInterceptor fromChannelPipeline(Plugin plugin) {
+		if (!hasChannelPipeline())
+			throw new IllegalStateException("Netty is not present on this server.");
+		return new InterceptorChannelPipeline(plugin);
+	}
 }
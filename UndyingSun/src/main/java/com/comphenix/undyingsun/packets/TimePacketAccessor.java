@@ -0,0 +1,122 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.packets;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Reads and writes the time fields of the vanilla time packet.
+ * <p>
+ * The packet class and its fields are resolved once. Any other packet is rejected with a single identity comparison.
+ * @author Kristian
+ */
+class TimePacketAccessor {
+	private final Class<?> packetClass;
+	private final Field totalTimeField;
+	private final Field relativeTimeField;
+	
+	private TimePacketAccessor(Class<?> packetClass, Field totalTimeField, Field relativeTimeField) {
+		this.packetClass = packetClass;
+		this.totalTimeField = totalTimeField;
+		this.relativeTimeField = relativeTimeField;
+	}
+	
+	/**
+	 * Construct an accessor for the given time packet class.
+	 * <p>
+	 * The first two instance fields of type long are the total time and the relative time, in that order.
+	 * @param packetClass - the time packet class.
+	 * @return The accessor.
+	 * @throws IllegalArgumentException If the class doesn't have two long fields.
+	 */
+	public static TimePacketAccessor fromClass(Class<?> packetClass) {
+		Field[] fields = new Field[2];
+		int count = 0;
+		
+		for (Field field : packetClass.getDeclaredFields()) {
+			if (field.getType() == long.class && !Modifier.isStatic(field.getModifiers())) {
+				field.setAccessible(true);
+				fields[count++] = field;
+				
+				if (count == fields.length)
+					return new TimePacketAccessor(packetClass, fields[0], fields[1]);
+			}
+		}
+		throw new IllegalArgumentException("Cannot find time fields in " + packetClass);
+	}
+	
+	/**
+	 * Attempt to load the time packet class from the given package.
+	 * @param loader - the class loader.
+	 * @param packageName - the package that should contain the packet.
+	 * @param simpleName - the simple name of the packet class.
+	 * @return The accessor, or NULL if the class cannot be found.
+	 */
+	public static TimePacketAccessor fromPackage(ClassLoader loader, String packageName, String simpleName) {
+		try {
+			return fromClass(Class.forName(packageName + "." + simpleName, true, loader));
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Determine if the given packet is a time packet.
+	 * @param packet - the packet, or NULL.
+	 * @return TRUE if it is, FALSE otherwise.
+	 */
+	public boolean isTimePacket(Object packet) {
+		return packet != null && packet.getClass() == packetClass;
+	}
+	
+	/**
+	 * Retrieve the time packet class.
+	 * @return The packet class.
+	 */
+	public Class<?> getPacketClass() {
+		return packetClass;
+	}
+	
+	/**
+	 * Retrieve the total time of the world.
+	 * @param packet - the time packet.
+	 * @return The total time.
+	 */
+	public long getTotalTime(Object packet) throws IllegalAccessException {
+		return totalTimeField.getLong(packet);
+	}
+	
+	/**
+	 * Retrieve the relative time, which is negative if the daylight cycle is stopped.
+	 * @param packet - the time packet.
+	 * @return The relative time.
+	 */
+	public long getRelativeTime(Object packet) throws IllegalAccessException {
+		return relativeTimeField.getLong(packet);
+	}
+	
+	/**
+	 * Set the relative time.
+	 * @param packet - the time packet.
+	 * @param relativeTime - the new relative time.
+	 */
+	public void setRelativeTime(Object packet, long relativeTime) throws IllegalAccessException {
+		relativeTimeField.setLong(packet, relativeTime);
+	}
+}
@@ -1,16 +1,45 @@
 package com.comphenix.undyingsun.packets;
 
+import java.util.Map;
+import java.util.Set;
+
 import org.bukkit.World;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.Plugin;
 
+import com.comphenix.undyingsun.metrics.Metrics;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
 /**
  * Represents a TimeSetter that uses the Bukkit API to modify each player's time.
+ * <p>
+ * Players are tracked per world. The time is computed once per world where possible, and a player's 
+ * time is only set when it actually changes.
  * @author Kristian
  */
-public class TimeSetter extends TimeInterceptor {
+public class TimeSetter extends TimeInterceptor implements Listener {
+	// Online players in each world
+	private final Map<World, Set<Player>> worldPlayers = Maps.newIdentityHashMap();
+	
+	// The time we last set for each player
+	private final Map<Player, Long> playerTimes = Maps.newIdentityHashMap();
+	
 	public TimeSetter(Plugin plugin) {
 		super(plugin);
+		plugin.getServer().getPluginManager().registerEvents(this, plugin);
+		
+		// Handle existing players
+		for (Player player : plugin.getServer().getOnlinePlayers()) {
+			addPlayer(player, player.getWorld());
+		}
 	}
 
 	/**
@@ -18,34 +47,140 @@ public class TimeSetter extends TimeInterceptor {
 	 * @param player - the player to update.
 	 */
 	public void update(Player player) {
-		try {
-			World world = player.getWorld();
+		World world = player.getWorld();
+		long relativeTime = world.getTime();
+		apply(player, relativeTime, process(player, world.getFullTime(), relativeTime));
+	}
+	
+	/**
+	 * Update the client-side time of every player on the server.
+	 */
+	public void update() {
+		for (Map.Entry<World, Set<Player>> entry : worldPlayers.entrySet()) {
+			World world = entry.getKey();
 			long totalTime = world.getFullTime();
 			long relativeTime = world.getTime();
-			long changedTime = invokeListeners(player, totalTime, relativeTime);
 			
-			if (relativeTime != changedTime) {
-				player.setPlayerTime(changedTime, false);
-			}
+			// Computed by the first player that shares the time of the world
+			boolean hasShared = false;
+			long sharedTime = 0;
 			
+			for (Player player : entry.getValue()) {
+				long changedTime;
+				
+				if (isWorldShared(player)) {
+					if (!hasShared) {
+						sharedTime = process(player, totalTime, relativeTime);
+						hasShared = true;
+					}
+					changedTime = sharedTime;
+				} else {
+					changedTime = process(player, totalTime, relativeTime);
+				}
+				apply(player, relativeTime, changedTime);
+			}
+		}
+	}
+	
+	private long process(Player player, long totalTime, long relativeTime) {
+		try {
+			return invokeListeners(player, totalTime, relativeTime);
 		} catch (Exception e) {
 			throw new RuntimeException("Cannot update player time.", e);
 		}
 	}
 	
 	/**
-	 * Update the client-side time of every player on the server.
+	 * Set the time of the given player, if it has changed.
+	 * @param player - the player.
+	 * @param relativeTime - the time of the player's world.
+	 * @param changedTime - the time the player should perceive.
 	 */
-	public void update() {
-		for (Player player : plugin.getServer().getOnlinePlayers()) {
-			update(player);
+	private void apply(Player player, long relativeTime, long changedTime) {
+		Long previous = playerTimes.get(player);
+		
+		if (relativeTime == changedTime) {
+			// Follow the world again
+			if (previous != null) {
+				player.resetPlayerTime();
+				playerTimes.remove(player);
+				recordPlayerTime();
+			}
+		} else if (previous == null || previous != changedTime) {
+			player.setPlayerTime(changedTime, false);
+			playerTimes.put(player, changedTime);
+			recordPlayerTime();
+		}
+	}
+	
+	private void recordPlayerTime() {
+		Metrics current = getMetrics();
+		
+		if (current != null)
+			current.recordPlayerTime();
+	}
+	
+	private void addPlayer(Player player, World world) {
+		Set<Player> players = worldPlayers.get(world);
+		
+		if (players == null) {
+			players = Sets.newSetFromMap(Maps.<Player, Boolean>newIdentityHashMap());
+			worldPlayers.put(world, players);
 		}
+		players.add(player);
+	}
+	
+	private void removePlayer(Player player, World world) {
+		Set<Player> players = worldPlayers.get(world);
+		
+		if (players != null) {
+			players.remove(player);
+			
+			if (players.isEmpty())
+				worldPlayers.remove(world);
+		}
+	}
+	
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(PlayerJoinEvent e) {
+		addPlayer(e.getPlayer(), e.getPlayer().getWorld());
+	}
+	
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerChangedWorld(PlayerChangedWorldEvent e) {
+		Player player = e.getPlayer();
+		removePlayer(player, e.getFrom());
+		addPlayer(player, player.getWorld());
+		
+		// Keep the cached time - the player time survives the world change, so the next update must reset it
+	}
+	
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(PlayerQuitEvent e) {
+		Player player = e.getPlayer();
+		removePlayer(player, player.getWorld());
+		playerTimes.remove(player);
+	}
+	
+	@Override
+	public String getName() {
+		return "TimeSetter";
+	}
+	
+	@Override
+	public boolean canSuppress() {
+		// The Bukkit API already skips unchanged times
+		return false;
 	}
 	
 	@Override
 	public void close() {
+		HandlerList.unregisterAll(this);
+		
 		for (Player player : plugin.getServer().getOnlinePlayers()) {
 			player.resetPlayerTime();
 		}
+		worldPlayers.clear();
+		playerTimes.clear();
 	}
 }
@@ -0,0 +1,340 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.players;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.Plugin;
+
+import com.comphenix.undyingsun.temporal.Clock;
+import com.comphenix.undyingsun.temporal.DaylightPreset;
+import com.comphenix.undyingsun.temporal.TickRate;
+import com.comphenix.undyingsun.temporal.TimeOfDay;
+
+/**
+ * Stores the client clock overrides of individual players.
+ * <p>
+ * Every override is stored in primitive arrays indexed by {@link PlayerSlots player slot}. Overrides 
+ * are written on the main thread, and may be read from any thread without locking or allocation.
+ * @author Kristian
+ */
+public class PlayerClocks {
+	/**
+	 * Returned when a player has no override.
+	 */
+	public static final long NO_OVERRIDE = Long.MIN_VALUE;
+	
+	/**
+	 * Set in the result of {@link #getTime(Player, long)} if the daylight cycle of the override is running.
+	 */
+	public static final long RUNNING = 1L << 32;
+	
+	/**
+	 * Represents the arrays of every slot.
+	 * <p>
+	 * Each slot is guarded by a sequence number - odd while the slot is being written.
+	 * @author Kristian
+	 */
+	private static class Store {
+		final AtomicIntegerArray sequence;
+		final AtomicIntegerArray active;
+		final AtomicIntegerArray origin;
+		final AtomicIntegerArray offset;
+		final AtomicIntegerArray preset;
+		final AtomicLongArray rateNumerator;
+		final AtomicLongArray rateDenominator;
+		
+		public Store(int capacity) {
+			sequence = new AtomicIntegerArray(capacity);
+			active = new AtomicIntegerArray(capacity);
+			origin = new AtomicIntegerArray(capacity);
+			offset = new AtomicIntegerArray(capacity);
+			preset = new AtomicIntegerArray(capacity);
+			rateNumerator = new AtomicLongArray(capacity);
+			rateDenominator = new AtomicLongArray(capacity);
+		}
+		
+		public int capacity() {
+			return sequence.length();
+		}
+	}
+	
+	private final PlayerSlots slots;
+	
+	// Replaced when the store grows
+	private volatile Store store = new Store(16);
+	
+	// Every preset in use, by index - replaced on change
+	private volatile DaylightPreset[] presets = new DaylightPreset[0];
+	
+	// The number of players with an override
+	private volatile int count;
+	
+	public PlayerClocks(Plugin plugin, PlayerSlots slots) {
+		this.slots = slots;
+		
+		// Clear the slot before it is released
+		plugin.getServer().getPluginManager().registerEvents(new Listener() {
+			@EventHandler(priority = EventPriority.HIGHEST)
+			public void onPlayerQuit(PlayerQuitEvent e) {
+				clearOverride(e.getPlayer());
+			}
+		}, plugin);
+	}
+	
+	/**
+	 * Override the client clock of a given player.
+	 * <p>
+	 * Only plain clocks are supported, as the override is stored as a preset, origin and tick rate.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @param player - the player.
+	 * @param clock - the new client clock of the player.
+	 * @param offset - number of ticks to add to the output of the clock.
+	 * @throws IllegalArgumentException If the clock is a subclass, such as a transition or a solar clock.
+	 */
+	public void setOverride(Player player, Clock clock, int offset) {
+		if (clock.getClass() != Clock.class)
+			throw new IllegalArgumentException("Cannot store " + clock.getClass().getSimpleName() + " as a player clock.");
+		setOverride(player, clock.getPreset(), clock.getOrigin(), clock.getExactTickRate(), offset);
+	}
+	
+	/**
+	 * Override the client clock of a given player.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @param player - the player.
+	 * @param preset - the daylight preset.
+	 * @param origin - the starting time of day.
+	 * @param tickRate - the number of clock ticks per game tick.
+	 * @param offset - number of ticks to add to the output of the clock.
+	 */
+	public void setOverride(Player player, DaylightPreset preset, TimeOfDay origin, double tickRate, int offset) {
+		setOverride(player, preset, origin, TickRate.fromDouble(tickRate), offset);
+	}
+	
+	/**
+	 * Override the client clock of a given player.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @param player - the player.
+	 * @param preset - the daylight preset.
+	 * @param origin - the starting time of day.
+	 * @param tickRate - the exact number of clock ticks per game tick.
+	 * @param offset - number of ticks to add to the output of the clock.
+	 */
+	public void setOverride(Player player, DaylightPreset preset, TimeOfDay origin, TickRate tickRate, int offset) {
+		if (origin == null)
+			throw new IllegalArgumentException("origin cannot be NULL.");
+		int slot = slots.assign(player);
+		int presetIndex = getPresetIndex(preset);
+		Store current = getStore(slot);
+		
+		// Begin write
+		current.sequence.incrementAndGet(slot);
+		
+		if (current.active.get(slot) == 0)
+			count++;
+		current.origin.set(slot, origin.getGameTick());
+		current.offset.set(slot, offset);
+		current.preset.set(slot, presetIndex);
+		current.rateNumerator.set(slot, tickRate.getNumerator());
+		current.rateDenominator.set(slot, tickRate.getDenominator());
+		current.active.set(slot, 1);
+		
+		// End write
+		current.sequence.incrementAndGet(slot);
+	}
+	
+	/**
+	 * Remove the client clock override of a given player.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @param player - the player.
+	 */
+	public void clearOverride(Player player) {
+		int slot = slots.getSlot(player);
+		Store current = store;
+		
+		if (slot != PlayerSlots.NO_SLOT && slot < current.capacity() && current.active.get(slot) != 0) {
+			current.sequence.incrementAndGet(slot);
+			current.active.set(slot, 0);
+			current.sequence.incrementAndGet(slot);
+			count--;
+		}
+	}
+	
+	/**
+	 * Determine if the given player has a client clock override.
+	 * @param player - the player.
+	 * @return TRUE if it does, FALSE otherwise.
+	 */
+	public boolean hasOverride(Player player) {
+		int slot = slots.getSlot(player);
+		Store current = store;
+		return slot != PlayerSlots.NO_SLOT && slot < current.capacity() && current.active.get(slot) != 0;
+	}
+	
+	/**
+	 * Determine if any player has a client clock override.
+	 * @return TRUE if any player does, FALSE otherwise.
+	 */
+	public boolean hasOverrides() {
+		return count > 0;
+	}
+	
+	/**
+	 * Retrieve the time perceived by the given player.
+	 * <p>
+	 * This method is thread-safe, and does not allocate.
+	 * @param player - the player.
+	 * @param elapsedTicks - the elapsed ticks of the player's world.
+	 * @return The time of day with the {@link #RUNNING} flag, or {@link #NO_OVERRIDE} if the player has no override.
+	 */
+	public long getTime(Player player, long elapsedTicks) {
+		// Skip the slot lookup entirely
+		if (count == 0)
+			return NO_OVERRIDE;
+		
+		int slot = slots.getSlot(player);
+		Store current = store;
+		
+		if (slot == PlayerSlots.NO_SLOT || slot >= current.capacity())
+			return NO_OVERRIDE;
+		
+		while (true) {
+			int before = current.sequence.get(slot);
+			
+			// Wait for the writer on the main thread
+			if ((before & 1) != 0)
+				continue;
+			if (current.active.get(slot) == 0)
+				return NO_OVERRIDE;
+			
+			int origin = current.origin.get(slot);
+			int offset = current.offset.get(slot);
+			DaylightPreset preset = presets[current.preset.get(slot)];
+			long rateNumerator = current.rateNumerator.get(slot);
+			long rateDenominator = current.rateDenominator.get(slot);
+			
+			if (current.sequence.get(slot) == before) {
+				long time = (Clock.get(preset, origin, rateNumerator, rateDenominator, elapsedTicks) + offset) % 
+						Clock.TICKS_PER_DAY;
+				
+				if (time < 0)
+					time += Clock.TICKS_PER_DAY;
+				// The gamerule doDaylightCycle is stored apart from the time, as zero has no sign
+				return rateNumerator != 0 ? time | RUNNING : time;
+			}
+		}
+	}
+	
+	/**
+	 * Retrieve the time of day in the result of {@link #getTime(Player, long)}.
+	 * @param time - the result.
+	 * @return The time of day, from 0 to 23999.
+	 */
+	public static long getTimeOfDay(long time) {
+		return time & ~RUNNING;
+	}
+	
+	/**
+	 * Determine if the daylight cycle is running in the result of {@link #getTime(Player, long)}.
+	 * @param time - the result.
+	 * @return TRUE if it is, FALSE otherwise.
+	 */
+	public static boolean isRunning(long time) {
+		return (time & RUNNING) != 0;
+	}
+	
+	/**
+	 * Determine how many game ticks must elapse before the time perceived by the given player has changed.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @param player - the player.
+	 * @param elapsedTicks - the elapsed ticks of the player's world.
+	 * @param threshold - the minimum change in ticks.
+	 * @return The number of game ticks, or {@link Long#MAX_VALUE} if the player has no running override.
+	 */
+	public long getTicksUntilChange(Player player, long elapsedTicks, int threshold) {
+		int slot = slots.getSlot(player);
+		Store current = store;
+		
+		if (slot == PlayerSlots.NO_SLOT || slot >= current.capacity() || current.active.get(slot) == 0)
+			return Long.MAX_VALUE;
+		return Clock.getTicksUntilChange(presets[current.preset.get(slot)], current.origin.get(slot), 
+				current.rateNumerator.get(slot), current.rateDenominator.get(slot), elapsedTicks, threshold);
+	}
+	
+	/**
+	 * Retrieve the store, growing it to include the given slot if necessary.
+	 * @param slot - the slot.
+	 * @return The store.
+	 */
+	private Store getStore(int slot) {
+		Store current = store;
+		
+		if (slot >= current.capacity()) {
+			Store copy = new Store(Math.max(slot + 1, current.capacity() * 2));
+			
+			for (int i = 0; i < current.capacity(); i++) {
+				copy.active.set(i, current.active.get(i));
+				copy.origin.set(i, current.origin.get(i));
+				copy.offset.set(i, current.offset.get(i));
+				copy.preset.set(i, current.preset.get(i));
+				copy.rateNumerator.set(i, current.rateNumerator.get(i));
+				copy.rateDenominator.set(i, current.rateDenominator.get(i));
+			}
+			store = current = copy;
+		}
+		return current;
+	}
+	
+	/**
+	 * Retrieve the index of the given preset, adding it if necessary.
+	 * @param preset - the preset.
+	 * @return The preset index.
+	 */
+	private int getPresetIndex(DaylightPreset preset) {
+		DaylightPreset[] current = presets;
+		
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].equals(preset))
+				return i;
+		}
+		DaylightPreset[] copy = Arrays.copyOf(current, current.length + 1);
+		copy[current.length] = preset;
+		presets = copy;
+		return current.length;
+	}
+	
+	/**
+	 * Remove every override.
+	 */
+	public void close() {
+		store = new Store(16);
+		count = 0;
+	}
+}
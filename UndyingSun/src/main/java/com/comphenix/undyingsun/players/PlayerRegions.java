@@ -0,0 +1,225 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.players;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.plugin.Plugin;
+
+import com.comphenix.undyingsun.regions.RegionIndex;
+import com.comphenix.undyingsun.temporal.Clock;
+
+/**
+ * Tracks the clock region every online player is standing in.
+ * <p>
+ * The region of each player is looked up in the {@link RegionIndex} whenever the player moves to 
+ * another block, and stored by {@link PlayerSlots player slot}. Regions are written on the main thread, 
+ * and may be read from any thread without locking or allocation.
+ * @author Kristian
+ */
+public class PlayerRegions {
+	/**
+	 * Represents a region index along with the region of every slot.
+	 * <p>
+	 * The region of each slot is offset by one, so zero means no region.
+	 * @author Kristian
+	 */
+	private static class State {
+		final RegionIndex index;
+		final AtomicIntegerArray regions;
+		
+		public State(RegionIndex index, int capacity) {
+			this.index = index;
+			this.regions = new AtomicIntegerArray(capacity);
+		}
+	}
+	
+	private final Plugin plugin;
+	private final PlayerSlots slots;
+	
+	// Replaced when the regions change or the slots grow
+	private volatile State state = new State(RegionIndex.empty(), 16);
+	
+	public PlayerRegions(Plugin plugin, PlayerSlots slots) {
+		this.plugin = plugin;
+		this.slots = slots;
+		
+		plugin.getServer().getPluginManager().registerEvents(new Listener() {
+			@EventHandler(priority = EventPriority.MONITOR)
+			public void onPlayerJoin(PlayerJoinEvent e) {
+				update(e.getPlayer(), e.getPlayer().getLocation());
+			}
+			
+			@EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+			public void onPlayerMove(PlayerMoveEvent e) {
+				Location from = e.getFrom();
+				Location to = e.getTo();
+				
+				// Most move events stay within the same block
+				if (from.getBlockX() != to.getBlockX() || from.getBlockY() != to.getBlockY() || 
+					from.getBlockZ() != to.getBlockZ()) {
+					update(e.getPlayer(), to);
+				}
+			}
+			
+			@EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+			public void onPlayerTeleport(PlayerTeleportEvent e) {
+				update(e.getPlayer(), e.getTo());
+			}
+			
+			@EventHandler(priority = EventPriority.MONITOR)
+			public void onPlayerRespawn(PlayerRespawnEvent e) {
+				update(e.getPlayer(), e.getRespawnLocation());
+			}
+			
+			@EventHandler(priority = EventPriority.MONITOR)
+			public void onPlayerChangedWorld(PlayerChangedWorldEvent e) {
+				update(e.getPlayer(), e.getPlayer().getLocation());
+			}
+			
+			// Clear the slot before it is released
+			@EventHandler(priority = EventPriority.HIGHEST)
+			public void onPlayerQuit(PlayerQuitEvent e) {
+				clear(e.getPlayer());
+			}
+		}, plugin);
+	}
+	
+	/**
+	 * Replace every region, and find the region of every online player.
+	 * <p>
+	 * This must be called on the main thread.
+	 * @param index - the new region index.
+	 */
+	public void setRegions(RegionIndex index) {
+		State next = new State(index, state.regions.length());
+		
+		// Fill in every player before the state is visible
+		for (Player player : plugin.getServer().getOnlinePlayers()) {
+			next = update(next, player, player.getLocation());
+		}
+		state = next;
+	}
+	
+	/**
+	 * Determine if any region has been defined.
+	 * @return TRUE if it has, FALSE otherwise.
+	 */
+	public boolean hasRegions() {
+		return !state.index.isEmpty();
+	}
+	
+	/**
+	 * Determine if the given player is within a region.
+	 * @param player - the player.
+	 * @return TRUE if the player is, FALSE otherwise.
+	 */
+	public boolean hasRegion(Player player) {
+		return getClientClock(player) != null;
+	}
+	
+	/**
+	 * Retrieve the client clock of the region the given player is standing in.
+	 * <p>
+	 * This method is thread-safe, and does not allocate.
+	 * @param player - the player.
+	 * @return The client clock of the region, or NULL if the player is not within a region.
+	 */
+	public Clock getClientClock(Player player) {
+		State current = state;
+		
+		// Skip the slot lookup entirely
+		if (current.index.isEmpty())
+			return null;
+		int slot = slots.getSlot(player);
+		
+		if (slot == PlayerSlots.NO_SLOT || slot >= current.regions.length())
+			return null;
+		int region = current.regions.get(slot) - 1;
+		return region != RegionIndex.NO_REGION ? current.index.getClientClock(region) : null;
+	}
+	
+	/**
+	 * Find the region of the given player at the given location.
+	 * @param player - the player.
+	 * @param location - the location of the player.
+	 */
+	private void update(Player player, Location location) {
+		State current = state;
+		State next = update(current, player, location);
+		
+		if (next != current)
+			state = next;
+	}
+	
+	/**
+	 * Find the region of the given player in the given state.
+	 * @param current - the state to update.
+	 * @param player - the player.
+	 * @param location - the location of the player.
+	 * @return The updated state, which is a copy if it had to grow.
+	 */
+	private State update(State current, Player player, Location location) {
+		if (current.index.isEmpty() || location == null || location.getWorld() == null)
+			return current;
+		int slot = slots.assign(player);
+		
+		if (slot >= current.regions.length()) {
+			State copy = new State(current.index, Math.max(slot + 1, current.regions.length() * 2));
+			
+			for (int i = 0; i < current.regions.length(); i++) {
+				copy.regions.set(i, current.regions.get(i));
+			}
+			current = copy;
+		}
+		int region = current.index.getRegion(location.getWorld().getName(), 
+				location.getBlockX(), location.getBlockY(), location.getBlockZ());
+		current.regions.set(slot, region + 1);
+		return current;
+	}
+	
+	/**
+	 * Forget the region of the given player.
+	 * @param player - the player.
+	 */
+	private void clear(Player player) {
+		int slot = slots.getSlot(player);
+		State current = state;
+		
+		if (slot != PlayerSlots.NO_SLOT && slot < current.regions.length())
+			current.regions.set(slot, 0);
+	}
+	
+	/**
+	 * Remove every region.
+	 */
+	public void close() {
+		state = new State(RegionIndex.empty(), 16);
+	}
+}
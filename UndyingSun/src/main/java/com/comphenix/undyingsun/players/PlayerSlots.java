@@ -0,0 +1,256 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.players;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.Plugin;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Assigns every online player a small, dense integer slot.
+ * <p>
+ * Per-player state can then be stored in primitive arrays indexed by slot, instead of a map keyed by player. 
+ * Slots are assigned before any other join listener, and released after every other quit listener.
+ * <p>
+ * Slots are looked up by the identity of the player object, in an open addressing table that is replaced 
+ * whenever a player joins or quits. A lookup is usually a single array read, without boxing.
+ * @author Kristian
+ */
+public class PlayerSlots {
+	/**
+	 * Represents a missing slot.
+	 */
+	public static final int NO_SLOT = -1;
+	
+	/**
+	 * An immutable open addressing table from player identity to slot.
+	 * @author Kristian
+	 */
+	private static class Table {
+		private static final Table EMPTY = new Table(new Player[0], new int[0]);
+		
+		final Player[] players;
+		final int[] slots;
+		
+		private Table(Player[] players, int[] slots) {
+			this.players = players;
+			this.slots = slots;
+		}
+		
+		/**
+		 * Construct a table with the given slot of every player.
+		 * @param entries - the slot of every player.
+		 * @return The table.
+		 */
+		public static Table fromMap(Map<Player, Integer> entries) {
+			if (entries.isEmpty())
+				return EMPTY;
+			
+			// Keep the table at most half full
+			int capacity = Integer.highestOneBit(entries.size() * 4 - 1);
+			Player[] players = new Player[capacity];
+			int[] slots = new int[capacity];
+			
+			for (Map.Entry<Player, Integer> entry : entries.entrySet()) {
+				int index = indexOf(players, entry.getKey());
+				players[index] = entry.getKey();
+				slots[index] = entry.getValue();
+			}
+			return new Table(players, slots);
+		}
+		
+		/**
+		 * Retrieve the slot of the given player.
+		 * @param player - the player.
+		 * @return The slot, or {@link PlayerSlots#NO_SLOT} if not found.
+		 */
+		public int get(Player player) {
+			if (players.length == 0)
+				return NO_SLOT;
+			int index = indexOf(players, player);
+			return players[index] != null ? slots[index] : NO_SLOT;
+		}
+		
+		/**
+		 * Retrieve the index of the given player, or the empty index where it would be stored.
+		 * @param players - the players in the table.
+		 * @param player - the player to find.
+		 * @return The index.
+		 */
+		private static int indexOf(Player[] players, Player player) {
+			int mask = players.length - 1;
+			int index = mix(System.identityHashCode(player)) & mask;
+			
+			while (players[index] != null && players[index] != player) {
+				index = (index + 1) & mask;
+			}
+			return index;
+		}
+		
+		private static int mix(int hash) {
+			// Spread the identity hash, as in HashMap
+			hash ^= (hash >>> 20) ^ (hash >>> 12);
+			return hash ^ (hash >>> 7) ^ (hash >>> 4);
+		}
+	}
+	
+	// Every slot by unique ID - guarded by this, and read when the player object is unknown
+	private final ConcurrentMap<UUID, Integer> slots = Maps.newConcurrentMap();
+	
+	// Every slot by player object - guarded by this
+	private final Map<Player, Integer> playerSlots = Maps.newIdentityHashMap();
+	
+	// Replaced whenever a player joins or quits
+	private volatile Table table = Table.EMPTY;
+	
+	// Slots in use - guarded by this
+	private final BitSet used = new BitSet();
+	
+	// One more than the highest slot ever assigned
+	private volatile int capacity;
+	
+	public PlayerSlots(Plugin plugin) {
+		final Server server = plugin.getServer();
+		
+		// Register player tracking
+		server.getPluginManager().registerEvents(new Listener() {
+			@EventHandler(priority = EventPriority.LOWEST)
+			public void onPlayerJoin(PlayerJoinEvent e) {
+				assign(e.getPlayer());
+			}
+			
+			@EventHandler(priority = EventPriority.MONITOR)
+			public void onPlayerQuit(PlayerQuitEvent e) {
+				release(e.getPlayer());
+			}
+		}, plugin);
+		
+		// Handle existing players
+		for (Player player : server.getOnlinePlayers()) {
+			assign(player);
+		}
+	}
+	
+	/**
+	 * Retrieve the slot of the given player.
+	 * <p>
+	 * This method is thread-safe.
+	 * @param player - the player.
+	 * @return The slot, or {@link #NO_SLOT} if the player has not been assigned a slot.
+	 */
+	public int getSlot(Player player) {
+		int slot = table.get(player);
+		
+		if (slot != NO_SLOT)
+			return slot;
+		
+		// The same player may be represented by another object
+		Integer result = slots.get(player.getUniqueId());
+		return result != null ? result : NO_SLOT;
+	}
+	
+	/**
+	 * Retrieve one more than the highest slot that has been assigned.
+	 * @return The number of slots in use or previously in use.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Assign a slot to the given player, if it doesn't have one already.
+	 * @param player - the player.
+	 * @return The assigned slot.
+	 */
+	public synchronized int assign(Player player) {
+		UUID id = player.getUniqueId();
+		Integer current = slots.get(id);
+		
+		if (current != null) {
+			// A new session of the same player keeps its slot
+			if (playerSlots.get(player) == null) {
+				removePlayer(id);
+				playerSlots.put(player, current);
+				table = Table.fromMap(playerSlots);
+			}
+			return current;
+		}
+		
+		// Reuse the lowest free slot
+		int slot = used.nextClearBit(0);
+		used.set(slot);
+		slots.put(id, slot);
+		playerSlots.put(player, slot);
+		table = Table.fromMap(playerSlots);
+		
+		if (slot >= capacity)
+			capacity = slot + 1;
+		return slot;
+	}
+	
+	/**
+	 * Release the slot of the given player.
+	 * @param player - the player.
+	 * @return The released slot, or {@link #NO_SLOT} if the player had no slot.
+	 */
+	public synchronized int release(Player player) {
+		UUID id = player.getUniqueId();
+		Integer slot = slots.remove(id);
+		
+		if (slot == null)
+			return NO_SLOT;
+		removePlayer(id);
+		table = Table.fromMap(playerSlots);
+		used.clear(slot);
+		return slot;
+	}
+	
+	/**
+	 * Remove every player object with the given unique ID from the identity map.
+	 * @param id - the unique ID.
+	 */
+	private void removePlayer(UUID id) {
+		for (Iterator<Player> it = playerSlots.keySet().iterator(); it.hasNext(); ) {
+			if (id.equals(it.next().getUniqueId()))
+				it.remove();
+		}
+	}
+	
+	/**
+	 * Release every slot.
+	 */
+	public synchronized void close() {
+		slots.clear();
+		playerSlots.clear();
+		table = Table.EMPTY;
+		used.clear();
+	}
+}
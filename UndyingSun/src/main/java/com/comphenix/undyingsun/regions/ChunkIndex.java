@@ -0,0 +1,116 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.regions;
+
+import java.util.Arrays;
+
+/**
+ * Represents a read-only hash map from chunk coordinates to non-negative integers.
+ * <p>
+ * Keys and values are stored in primitive arrays with open addressing, so lookups never allocate.
+ * @author Kristian
+ */
+class ChunkIndex {
+	/**
+	 * Returned when a chunk is not in the index.
+	 */
+	public static final int NO_VALUE = -1;
+	
+	private final long[] keys;
+	private final int[] values;
+	private final int mask;
+	private int size;
+	
+	/**
+	 * Construct a new chunk index with room for the given number of chunks.
+	 * @param capacity - the maximum number of chunks.
+	 */
+	public ChunkIndex(int capacity) {
+		// Keep the load factor at or below one half
+		int length = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2;
+		
+		this.keys = new long[length];
+		this.values = new int[length];
+		this.mask = length - 1;
+		Arrays.fill(values, NO_VALUE);
+	}
+	
+	/**
+	 * Retrieve the key of the chunk with the given chunk coordinates.
+	 * @param chunkX - the chunk x coordinate.
+	 * @param chunkZ - the chunk z coordinate.
+	 * @return The chunk key.
+	 */
+	public static long getKey(int chunkX, int chunkZ) {
+		return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Retrieve the value of the given chunk.
+	 * @param key - the chunk key.
+	 * @return The value, or {@link #NO_VALUE} if the chunk is not in the index.
+	 */
+	public int get(long key) {
+		for (int i = getSlot(key); ; i = (i + 1) & mask) {
+			int value = values[i];
+			
+			if (value == NO_VALUE || keys[i] == key)
+				return value;
+		}
+	}
+	
+	/**
+	 * Associate a chunk with the given value, replacing any previous value.
+	 * <p>
+	 * This must not be called after the index has been shared with other threads.
+	 * @param key - the chunk key.
+	 * @param value - the non-negative value.
+	 */
+	public void put(long key, int value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Value cannot be negative.");
+		
+		for (int i = getSlot(key); ; i = (i + 1) & mask) {
+			if (values[i] == NO_VALUE) {
+				if (size >= keys.length / 2)
+					throw new IllegalStateException("Chunk index is full.");
+				keys[i] = key;
+				values[i] = value;
+				size++;
+				return;
+			} else if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Retrieve the number of chunks in the index.
+	 * @return The number of chunks.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	private int getSlot(long key) {
+		// Fibonacci hashing - spreads neighbouring chunks across the table
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+}
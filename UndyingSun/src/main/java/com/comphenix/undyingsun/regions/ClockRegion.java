@@ -0,0 +1,232 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.regions;
+
+import java.util.Arrays;
+
+import com.comphenix.undyingsun.temporal.Clock;
+import com.google.common.base.Objects;
+
+/**
+ * Represents a region of a world with its own client clock.
+ * <p>
+ * A region is either a cuboid of blocks, or a set of whole chunks. Regions are immutable.
+ * @author Kristian
+ */
+public class ClockRegion {
+	/**
+	 * The maximum number of chunks a cuboid may span.
+	 */
+	public static final long MAX_CHUNKS = 1L << 24;
+	
+	/**
+	 * Cuboids spanning more chunks than this are found by their bounds instead of the chunk index.
+	 */
+	static final long MAX_INDEXED_CHUNKS = 1L << 12;
+	
+	private final String name;
+	private final String worldName;
+	private final Clock clientClock;
+	
+	// Inclusive block bounds - unbounded for chunk sets
+	private final int minX, minY, minZ;
+	private final int maxX, maxY, maxZ;
+	
+	// Every chunk key of a chunk set, or NULL for a cuboid
+	private final long[] chunks;
+	
+	private ClockRegion(String name, String worldName, Clock clientClock, 
+			int minX, int minY, int minZ, int maxX, int maxY, int maxZ, long[] chunks) {
+		if (name == null)
+			throw new IllegalArgumentException("name cannot be NULL.");
+		if (worldName == null)
+			throw new IllegalArgumentException("worldName cannot be NULL.");
+		if (clientClock == null)
+			throw new IllegalArgumentException("clientClock cannot be NULL.");
+		this.name = name;
+		this.worldName = worldName;
+		this.clientClock = clientClock;
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.maxZ = maxZ;
+		this.chunks = chunks;
+	}
+	
+	/**
+	 * Construct a region from the cuboid between two corners, inclusive.
+	 * @param name - the name of the region.
+	 * @param worldName - the name of the world.
+	 * @param clientClock - the client clock within the region.
+	 * @param x1 - the x coordinate of the first corner.
+	 * @param y1 - the y coordinate of the first corner.
+	 * @param z1 - the z coordinate of the first corner.
+	 * @param x2 - the x coordinate of the second corner.
+	 * @param y2 - the y coordinate of the second corner.
+	 * @param z2 - the z coordinate of the second corner.
+	 * @return The new region.
+	 * @throws IllegalArgumentException If the cuboid spans more than {@link #MAX_CHUNKS} chunks.
+	 */
+	public static ClockRegion fromCuboid(String name, String worldName, Clock clientClock, 
+			int x1, int y1, int z1, int x2, int y2, int z2) {
+		long count = getChunkCount(Math.min(x1, x2), Math.min(z1, z2), Math.max(x1, x2), Math.max(z1, z2));
+		
+		if (count > MAX_CHUNKS)
+			throw new IllegalArgumentException("Region spans " + count + " chunks, more than " + MAX_CHUNKS + ".");
+		return new ClockRegion(name, worldName, clientClock, 
+				Math.min(x1, x2), Math.min(y1, y2), Math.min(z1, z2), 
+				Math.max(x1, x2), Math.max(y1, y2), Math.max(z1, z2), null);
+	}
+	
+	/**
+	 * Construct a region from a set of whole chunks.
+	 * @param name - the name of the region.
+	 * @param worldName - the name of the world.
+	 * @param clientClock - the client clock within the region.
+	 * @param chunkX - the x coordinate of every chunk.
+	 * @param chunkZ - the z coordinate of every chunk, in the same order.
+	 * @return The new region.
+	 */
+	public static ClockRegion fromChunks(String name, String worldName, Clock clientClock, int[] chunkX, int[] chunkZ) {
+		if (chunkX.length != chunkZ.length)
+			throw new IllegalArgumentException("Every chunk must have both coordinates.");
+		long[] chunks = new long[chunkX.length];
+		
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = ChunkIndex.getKey(chunkX[i], chunkZ[i]);
+		}
+		return new ClockRegion(name, worldName, clientClock, 
+				Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, 
+				Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, chunks);
+	}
+	
+	/**
+	 * Retrieve the name of this region.
+	 * @return The name.
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Retrieve the name of the world this region belongs to.
+	 * @return The world name.
+	 */
+	public String getWorldName() {
+		return worldName;
+	}
+	
+	/**
+	 * Retrieve the client clock within this region.
+	 * @return The client clock.
+	 */
+	public Clock getClientClock() {
+		return clientClock;
+	}
+	
+	/**
+	 * Determine if this region is a set of whole chunks.
+	 * @return TRUE if it is, FALSE if it is a cuboid.
+	 */
+	public boolean isChunkSet() {
+		return chunks != null;
+	}
+	
+	/**
+	 * Determine if the given block is within the bounds of this region.
+	 * <p>
+	 * Chunk sets are unbounded, as the chunk index determines which chunks they contain.
+	 * @param x - the block x coordinate.
+	 * @param y - the block y coordinate.
+	 * @param z - the block z coordinate.
+	 * @return TRUE if it is, FALSE otherwise.
+	 */
+	public boolean contains(int x, int y, int z) {
+		return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+	}
+	
+	/**
+	 * Retrieve the number of chunks this region overlaps.
+	 * @return The number of chunks.
+	 */
+	long getChunkCount() {
+		return chunks != null ? chunks.length : getChunkCount(minX, minZ, maxX, maxZ);
+	}
+	
+	/**
+	 * Determine if this region should be stored in the chunk index, or found by its bounds.
+	 * @return TRUE if it should be indexed, FALSE otherwise.
+	 */
+	boolean isIndexed() {
+		return chunks != null || getChunkCount() <= MAX_INDEXED_CHUNKS;
+	}
+	
+	/**
+	 * Retrieve the key of every chunk this region overlaps.
+	 * @return The chunk keys.
+	 */
+	long[] getChunkKeys() {
+		if (chunks != null)
+			return chunks.clone();
+		
+		int minChunkX = minX >> 4, maxChunkX = maxX >> 4;
+		int minChunkZ = minZ >> 4, maxChunkZ = maxZ >> 4;
+		long[] result = new long[(int) getChunkCount()];
+		int index = 0;
+		
+		for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+			for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+				result[index++] = ChunkIndex.getKey(chunkX, chunkZ);
+			}
+		}
+		return result;
+	}
+	
+	private static long getChunkCount(int minX, int minZ, int maxX, int maxZ) {
+		return ((long) (maxX >> 4) - (minX >> 4) + 1) * ((long) (maxZ >> 4) - (minZ >> 4) + 1);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (obj instanceof ClockRegion) {
+			ClockRegion other = (ClockRegion) obj;
+			return name.equals(other.name) && 
+				   worldName.equals(other.worldName) && 
+				   clientClock.equals(other.clientClock) &&
+				   minX == other.minX && minY == other.minY && minZ == other.minZ &&
+				   maxX == other.maxX && maxY == other.maxY && maxZ == other.maxZ &&
+				   Arrays.equals(chunks, other.chunks);
+		}
+		return false;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(name, worldName, clientClock, minX, minY, minZ, maxX, maxY, maxZ) * 31 + 
+				Arrays.hashCode(chunks);
+	}
+	
+	@Override
+	public String toString() {
+		return "ClockRegion [name=" + name + ", world=" + worldName + ", clientClock=" + clientClock + "]";
+	}
+}
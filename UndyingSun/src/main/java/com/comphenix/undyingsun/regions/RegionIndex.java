@@ -0,0 +1,228 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.regions;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.comphenix.undyingsun.temporal.Clock;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+
+/**
+ * Represents a compiled spatial index of every clock region.
+ * <p>
+ * Each world has a chunk index that maps every chunk to the regions that overlap it, so the region 
+ * of a block can be found in constant time without any allocation. If several regions overlap the 
+ * same block, the first region in the list takes precedence. Cuboids that span too many chunks to 
+ * index are instead kept in a short list per world, and checked by their bounds. This class is immutable.
+ * @author Kristian
+ */
+public class RegionIndex {
+	/**
+	 * Returned when a block is not within any region.
+	 */
+	public static final int NO_REGION = -1;
+	
+	private static final RegionIndex EMPTY = compile(ImmutableList.<ClockRegion>of());
+	
+	// Every region, by region ID
+	private final ClockRegion[] regions;
+	
+	// Index of each world by world name
+	private final Map<String, WorldIndex> worlds;
+	
+	// Region IDs of chunks with more than one region, in order of precedence
+	private final int[][] overlaps;
+	
+	private RegionIndex(ClockRegion[] regions, Map<String, WorldIndex> worlds, int[][] overlaps) {
+		this.regions = regions;
+		this.worlds = worlds;
+		this.overlaps = overlaps;
+	}
+	
+	/**
+	 * Retrieve an index without any regions.
+	 * @return The empty index.
+	 */
+	public static RegionIndex empty() {
+		return EMPTY;
+	}
+	
+	/**
+	 * Compile the given regions into a spatial index.
+	 * @param regions - the regions, in order of precedence.
+	 * @return The compiled index.
+	 */
+	public static RegionIndex compile(List<ClockRegion> regions) {
+		ClockRegion[] array = regions.toArray(new ClockRegion[regions.size()]);
+		Map<String, List<Integer>> regionsByWorld = Maps.newLinkedHashMap();
+		List<int[]> overlaps = Lists.newArrayList();
+		
+		for (int i = 0; i < array.length; i++) {
+			List<Integer> ids = regionsByWorld.get(array[i].getWorldName());
+			
+			if (ids == null)
+				regionsByWorld.put(array[i].getWorldName(), ids = Lists.newArrayList());
+			ids.add(i);
+		}
+		
+		ImmutableMap.Builder<String, WorldIndex> worlds = ImmutableMap.builder();
+		
+		for (Entry<String, List<Integer>> world : regionsByWorld.entrySet()) {
+			List<Integer> bounded = Lists.newArrayList();
+			int capacity = 0;
+			
+			for (int id : world.getValue()) {
+				if (array[id].isIndexed())
+					capacity += (int) array[id].getChunkCount();
+				else
+					bounded.add(id);
+			}
+			ChunkIndex index = new ChunkIndex(capacity);
+			
+			// Find every region of each chunk, in order of precedence
+			for (int id : world.getValue()) {
+				if (!array[id].isIndexed())
+					continue;
+				
+				for (long key : array[id].getChunkKeys()) {
+					int cell = index.get(key);
+					
+					if (cell == ChunkIndex.NO_VALUE) {
+						index.put(key, id);
+					} else if (cell < array.length) {
+						if (cell != id) {
+							index.put(key, array.length + overlaps.size());
+							overlaps.add(new int[] { cell, id });
+						}
+					} else {
+						int[] ids = overlaps.get(cell - array.length);
+						
+						if (ids[ids.length - 1] != id) {
+							ids = Arrays.copyOf(ids, ids.length + 1);
+							ids[ids.length - 1] = id;
+							overlaps.set(cell - array.length, ids);
+						}
+					}
+				}
+			}
+			worlds.put(world.getKey(), new WorldIndex(index, Ints.toArray(bounded)));
+		}
+		return new RegionIndex(array, worlds.build(), overlaps.toArray(new int[overlaps.size()][]));
+	}
+	
+	/**
+	 * Retrieve the region of the given block.
+	 * <p>
+	 * This method is thread-safe, and does not allocate.
+	 * @param worldName - the name of the world.
+	 * @param x - the block x coordinate.
+	 * @param y - the block y coordinate.
+	 * @param z - the block z coordinate.
+	 * @return The region ID, or {@link #NO_REGION} if the block is not within any region.
+	 */
+	public int getRegion(String worldName, int x, int y, int z) {
+		WorldIndex world = worlds.get(worldName);
+		
+		if (world == null)
+			return NO_REGION;
+		int region = getIndexedRegion(world.chunks, x, y, z);
+		
+		// Large cuboids only take precedence if they come first
+		for (int candidate : world.bounded) {
+			if (region != NO_REGION && candidate > region)
+				break;
+			if (regions[candidate].contains(x, y, z))
+				return candidate;
+		}
+		return region;
+	}
+	
+	private int getIndexedRegion(ChunkIndex chunks, int x, int y, int z) {
+		int cell = chunks.get(ChunkIndex.getKey(x >> 4, z >> 4));
+		
+		if (cell == ChunkIndex.NO_VALUE) {
+			return NO_REGION;
+		} else if (cell < regions.length) {
+			return regions[cell].contains(x, y, z) ? cell : NO_REGION;
+		}
+		
+		for (int region : overlaps[cell - regions.length]) {
+			if (regions[region].contains(x, y, z))
+				return region;
+		}
+		return NO_REGION;
+	}
+	
+	/**
+	 * Retrieve the region with the given ID.
+	 * @param region - the region ID.
+	 * @return The region.
+	 */
+	public ClockRegion get(int region) {
+		return regions[region];
+	}
+	
+	/**
+	 * Retrieve the client clock of the region with the given ID.
+	 * @param region - the region ID.
+	 * @return The client clock.
+	 */
+	public Clock getClientClock(int region) {
+		return regions[region].getClientClock();
+	}
+	
+	/**
+	 * Retrieve the number of regions in the index.
+	 * @return The number of regions.
+	 */
+	public int size() {
+		return regions.length;
+	}
+	
+	/**
+	 * Determine if the index contains no regions.
+	 * @return TRUE if it does, FALSE otherwise.
+	 */
+	public boolean isEmpty() {
+		return regions.length == 0;
+	}
+	
+	/**
+	 * Represents the regions of a single world.
+	 * @author Kristian
+	 */
+	private static class WorldIndex {
+		// Values below the region count are region IDs, the rest index overlaps
+		private final ChunkIndex chunks;
+		
+		// Region IDs of cuboids that are too large to index, in order of precedence
+		private final int[] bounded;
+		
+		public WorldIndex(ChunkIndex chunks, int[] bounded) {
+			this.chunks = chunks;
+			this.bounded = bounded;
+		}
+	}
+}
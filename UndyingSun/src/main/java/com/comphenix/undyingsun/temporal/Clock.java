@@ -23,6 +23,8 @@ import com.google.common.base.Objects;
 
 /**
  * Represents a Minecraft clock.
+ * <p>
+ * Clocks are immutable. Every property that is read while sending time packets is computed on construction.
  * @author Kristian
  */
 public class Clock {
@@ -38,7 +40,13 @@ public class Clock {
 	
 	private final DaylightPreset preset;
 	private final TimeOfDay origin;
-	private final double tickRate;
+	private final TickRate tickRate;
+	
+	// Resolved on construction
+	private final int originTick;
+	private final boolean running;
+	private final boolean defaultClock;
+	private final short[] table;
 	
 	/**
 	 * Retrieve the default clock in Minecraft.
@@ -50,13 +58,29 @@ public class Clock {
 	
 	/**
 	 * Construct a new Minecraft clock.
+	 * <p>
+	 * The tick rate is converted to the nearest {@link TickRate}.
 	 * @param origin - the starting time.
 	 * @param tickRate - the tick rate.
 	 */
 	public Clock(DaylightPreset preset, TimeOfDay origin, double tickRate) {
+		this(preset, origin, TickRate.fromDouble(tickRate));
+	}
+	
+	/**
+	 * Construct a new Minecraft clock.
+	 * @param origin - the starting time.
+	 * @param tickRate - the exact tick rate.
+	 */
+	public Clock(DaylightPreset preset, TimeOfDay origin, TickRate tickRate) {
 		this.preset = preset;
 		this.origin = origin;
 		this.tickRate = tickRate;
+		this.originTick = origin != null ? origin.getGameTick() : 0;
+		this.running = !tickRate.isStopped();
+		this.defaultClock = preset.isDefault() && tickRate.equals(TickRate.NORMAL) && 
+				Objects.equal(origin, TimeOfDay.MORNING);
+		this.table = preset.getTable();
 	}
 	
 	/**
@@ -72,6 +96,14 @@ public class Clock {
 	 * @return The tick rate.
 	 */
 	public double getTickRate() {
+		return tickRate.toDouble();
+	}
+	
+	/**
+	 * Retrieve the exact number of clock ticks in a single game tick.
+	 * @return The tick rate.
+	 */
+	public TickRate getExactTickRate() {
 		return tickRate;
 	}
 	
@@ -88,7 +120,7 @@ public class Clock {
 	 * @return TRUE if it is, FALSE otherwise.
 	 */
 	public boolean isRunning() {
-		return tickRate != 0;
+		return running;
 	}
 	
 	/**
@@ -96,7 +128,7 @@ public class Clock {
 	 * @return TRUE if it is, FALSE otherwise.
 	 */
 	public boolean isDefault() {
-		return this.equals(DEFAULT_CLOCK);
+		return defaultClock;
 	}
 	
 	/**
@@ -107,15 +139,104 @@ public class Clock {
 	 * @return The current time.
 	 */
 	public int get(long elapsedTicks) {
-		int time = 0;
+		return table[getAlteredTime(originTick, tickRate.getNumerator(), tickRate.getDenominator(), elapsedTicks)];
+	}
+	
+	/**
+	 * Retrieve the current Minecraft time as it would be at the given instant.
+	 * <p>
+	 * Only clocks that change over time, such as transitions, use the instant.
+	 * @param elapsedTicks - number of elapsed ticks.
+	 * @param nanoTime - the instant in nanoseconds, as measured by a monotonic ticker.
+	 * @return The current time.
+	 */
+	int get(long elapsedTicks, long nanoTime) {
+		return get(elapsedTicks);
+	}
+	
+	/**
+	 * Retrieve the plain clock this clock will be equivalent to from the given instant.
+	 * @param nanoTime - the instant in nanoseconds, as measured by a monotonic ticker.
+	 * @return The equivalent clock, or this clock.
+	 */
+	Clock resolve(long nanoTime) {
+		return this;
+	}
+	
+	/**
+	 * Retrieve the plain clock this clock is currently equivalent to.
+	 * <p>
+	 * This collapses transitions that have finished.
+	 * @return The equivalent clock, or this clock.
+	 */
+	public Clock resolve() {
+		return resolve(System.nanoTime());
+	}
+	
+	/**
+	 * Retrieve the Minecraft time of a clock after the given number of elapsed ticks.
+	 * <p>
+	 * This allows clocks to be stored as primitives, without constructing a clock for every evaluation.
+	 * @param preset - the daylight preset of the clock.
+	 * @param originTick - the starting game tick of the clock.
+	 * @param rateNumerator - the numerator of the tick rate.
+	 * @param rateDenominator - the denominator of the tick rate.
+	 * @param elapsedTicks - number of elapsed ticks.
+	 * @return The current time.
+	 * @see TickRate
+	 */
+	public static int get(DaylightPreset preset, int originTick, long rateNumerator, long rateDenominator, long elapsedTicks) {
+		return preset.toNormalTime(getAlteredTime(originTick, rateNumerator, rateDenominator, elapsedTicks));
+	}
+	
+	/**
+	 * Determine how many game ticks must elapse before the output of this clock has changed by a given amount.
+	 * @param elapsedTicks - number of elapsed ticks.
+	 * @param threshold - the minimum change in the output, in ticks.
+	 * @return The number of game ticks, or {@link Long#MAX_VALUE} if the output will never change.
+	 */
+	public long getTicksUntilChange(long elapsedTicks, int threshold) {
+		return getTicksUntilChange(preset, originTick, 
+				tickRate.getNumerator(), tickRate.getDenominator(), elapsedTicks, threshold);
+	}
+	
+	/**
+	 * Determine how many game ticks must elapse before the output of a clock has changed by a given amount.
+	 * @param preset - the daylight preset of the clock.
+	 * @param originTick - the starting game tick of the clock.
+	 * @param rateNumerator - the numerator of the tick rate.
+	 * @param rateDenominator - the denominator of the tick rate.
+	 * @param elapsedTicks - number of elapsed ticks.
+	 * @param threshold - the minimum change in the output, in ticks.
+	 * @return The number of game ticks, or {@link Long#MAX_VALUE} if the output will never change.
+	 */
+	public static long getTicksUntilChange(DaylightPreset preset, int originTick, long rateNumerator, 
+			long rateDenominator, long elapsedTicks, int threshold) {
+		if (rateNumerator == 0)
+			return Long.MAX_VALUE;
+		int alteredTicks = preset.getTicksUntilChange(
+				getAlteredTime(originTick, rateNumerator, rateDenominator, elapsedTicks), threshold, rateNumerator > 0);
 		
-		if (isRunning()) {
-			int phase = (int) ((elapsedTicks % TICKS_PER_DAY) * tickRate);
-			time = (origin.getGameTick() + phase) % TICKS_PER_DAY;
+		// Round up - the output must have changed by then
+		long speed = Math.abs(rateNumerator);
+		return Math.max(1, (alteredTicks * rateDenominator + speed - 1) / speed);
+	}
+	
+	/**
+	 * Retrieve the time of a clock before the daylight preset has been applied.
+	 * @param originTick - the starting game tick of the clock.
+	 * @param rateNumerator - the numerator of the tick rate.
+	 * @param rateDenominator - the denominator of the tick rate.
+	 * @param elapsedTicks - number of elapsed ticks.
+	 * @return The time in the altered day.
+	 */
+	private static int getAlteredTime(int originTick, long rateNumerator, long rateDenominator, long elapsedTicks) {
+		if (rateNumerator != 0) {
+			// The phase is always positive, even if the clock runs backwards
+			return (originTick + TickRate.getPhase(rateNumerator, rateDenominator, elapsedTicks)) % TICKS_PER_DAY;
 		} else {
-			time = origin.getGameTick();
+			return originTick;
 		}
-		return preset.toNormalTime(time);
 	}
 	
 	/**
@@ -145,15 +266,25 @@ public class Clock {
 		return new Clock(preset, origin, tickRate);
 	}
 	
+	/**
+	 * Retrieve a new clock based on the current with the given exact tick rate.
+	 * @param tickRate - the new tick rate.
+	 * @return The new clock.
+	 */
+	public Clock withSpeed(TickRate tickRate) {
+		return new Clock(preset, origin, tickRate);
+	}
+	
 	@Override
 	public boolean equals(Object obj) {
 		if (obj == this)
 			return true;
-		if (obj instanceof Clock) {
+		// Subclasses, such as solar clocks, are never equal to a plain clock
+		if (obj != null && obj.getClass() == getClass()) {
 			Clock other = (Clock) obj;
 			return Objects.equal(getPreset(), other.getPreset()) &&
 				   Objects.equal(getOrigin(), other.getOrigin()) &&
-				   getTickRate() == other.getTickRate();
+				   tickRate.equals(other.tickRate);
 		}
 		return false;
 	}
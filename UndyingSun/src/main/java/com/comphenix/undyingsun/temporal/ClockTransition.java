@@ -0,0 +1,229 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.temporal;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+
+/**
+ * Represents a clock that gradually moves from the output of one clock to another.
+ * <p>
+ * The transition starts when it is constructed, and its progress is measured in game ticks 
+ * of wall time, as read from a {@link Ticker}. Until it finishes, the output is the target clock 
+ * minus the initial difference between the two clocks, scaled down by a precompiled easing timeline. Every evaluation is O(1), 
+ * thread-safe and free of allocations.
+ * <p>
+ * The properties of this clock, such as the origin and tick rate, are those of the target clock.
+ * @author Kristian
+ */
+public class ClockTransition extends Clock {
+	/**
+	 * The number of nanoseconds in a game tick.
+	 */
+	private static final long NANOSECONDS_PER_TICK = 50000000L;
+	
+	/**
+	 * The number of segments in the easing timeline.
+	 */
+	private static final int SEGMENTS = 64;
+	
+	/**
+	 * The fixed-point representation of one in the easing timeline.
+	 */
+	private static final int ONE = 1 << 16;
+	
+	/**
+	 * The remaining fraction of the initial difference at every keyframe, smoothly going from one to zero.
+	 */
+	private static final int[] TIMELINE = compileTimeline();
+	
+	private final Clock from;
+	private final Clock target;
+	private final Ticker ticker;
+	private final long startNanos;
+	private final long duration;
+	
+	/**
+	 * Construct a new transition that starts now.
+	 * @param from - the clock to transition from.
+	 * @param target - the clock to transition to.
+	 * @param duration - the duration of the transition in game ticks.
+	 */
+	public ClockTransition(Clock from, Clock target, long duration) {
+		this(from, target, duration, Ticker.systemTicker());
+	}
+	
+	/**
+	 * Construct a new transition that starts now, as measured by the given source of time.
+	 * @param from - the clock to transition from.
+	 * @param target - the clock to transition to.
+	 * @param duration - the duration of the transition in game ticks.
+	 * @param ticker - the monotonic source of time that measures the progress.
+	 */
+	public ClockTransition(Clock from, Clock target, long duration, Ticker ticker) {
+		super(target.getPreset(), target.getOrigin(), target.getExactTickRate());
+		
+		if (duration <= 0)
+			throw new IllegalArgumentException("Duration must be positive.");
+		this.ticker = ticker;
+		this.startNanos = ticker.read();
+		this.from = from.resolve(startNanos);
+		this.target = target.resolve(startNanos);
+		this.duration = duration;
+	}
+	
+	/**
+	 * Compile the easing timeline, using the smooth step function.
+	 * @return The timeline.
+	 */
+	private static int[] compileTimeline() {
+		int[] result = new int[SEGMENTS + 1];
+		
+		for (int i = 0; i <= SEGMENTS; i++) {
+			double x = i / (double) SEGMENTS;
+			result[i] = (int) Math.round((1 - x * x * (3 - 2 * x)) * ONE);
+		}
+		return result;
+	}
+	
+	/**
+	 * Retrieve the clock we are transitioning from.
+	 * @return The original clock.
+	 */
+	public Clock getFrom() {
+		return from;
+	}
+	
+	/**
+	 * Retrieve the clock we are transitioning to.
+	 * @return The target clock.
+	 */
+	public Clock getTarget() {
+		return target;
+	}
+	
+	/**
+	 * Retrieve the duration of the transition.
+	 * @return The duration in game ticks.
+	 */
+	public long getDuration() {
+		return duration;
+	}
+	
+	/**
+	 * Retrieve the number of game ticks since the transition started.
+	 * @param nanoTime - the current value of the ticker.
+	 * @return The number of game ticks.
+	 */
+	private long getProgress(long nanoTime) {
+		return Math.max(0, (nanoTime - startNanos) / NANOSECONDS_PER_TICK);
+	}
+	
+	/**
+	 * Determine if the transition has finished.
+	 * @return TRUE if it has, FALSE otherwise.
+	 */
+	public boolean isFinished() {
+		return getProgress(ticker.read()) >= duration;
+	}
+	
+	@Override
+	Clock resolve(long nanoTime) {
+		return getProgress(nanoTime) >= duration ? target : this;
+	}
+	
+	@Override
+	public Clock resolve() {
+		return resolve(ticker.read());
+	}
+	
+	@Override
+	public boolean isRunning() {
+		// The output keeps changing until we are done
+		return target.isRunning() || !isFinished();
+	}
+	
+	@Override
+	public boolean isDefault() {
+		return target.isDefault() && isFinished();
+	}
+	
+	@Override
+	public int get(long elapsedTicks) {
+		return get(elapsedTicks, ticker.read());
+	}
+	
+	@Override
+	int get(long elapsedTicks, long nanoTime) {
+		long progress = getProgress(nanoTime);
+		
+		if (progress >= duration)
+			return target.get(elapsedTicks, nanoTime);
+		
+		// Both clocks are compared where the world was when the transition started
+		long startTicks = elapsedTicks - progress;
+		int difference = target.get(startTicks, startNanos) - from.get(startTicks, startNanos);
+		
+		// Take the shortest way around the day
+		if (difference > TICKS_PER_DAY / 2)
+			difference -= TICKS_PER_DAY;
+		else if (difference <= -TICKS_PER_DAY / 2)
+			difference += TICKS_PER_DAY;
+		
+		// Interpolate between two keyframes
+		long position = progress * SEGMENTS;
+		int segment = (int) (position / duration);
+		long fraction = position % duration;
+		long remaining = TIMELINE[segment] + (TIMELINE[segment + 1] - TIMELINE[segment]) * fraction / duration;
+		
+		long result = (target.get(elapsedTicks, nanoTime) - difference * remaining / ONE) % TICKS_PER_DAY;
+		return (int) (result < 0 ? result + TICKS_PER_DAY : result);
+	}
+	
+	@Override
+	public long getTicksUntilChange(long elapsedTicks, int threshold) {
+		// Update every tick until we are done
+		if (!isFinished())
+			return 1;
+		return target.getTicksUntilChange(elapsedTicks, threshold);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (obj != null && obj.getClass() == getClass()) {
+			ClockTransition other = (ClockTransition) obj;
+			return from.equals(other.from) && 
+				   target.equals(other.target) && 
+				   duration == other.duration &&
+				   startNanos == other.startNanos;
+		}
+		return false;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(from, target, duration, startNanos);
+	}
+	
+	@Override
+	public String toString() {
+		return "ClockTransition [from=" + from + ", target=" + target + ", duration=" + duration + "]";
+	}
+}
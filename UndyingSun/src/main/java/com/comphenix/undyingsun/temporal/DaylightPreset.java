@@ -1,7 +1,5 @@
 package com.comphenix.undyingsun.temporal;
 
-import java.util.Arrays;
-
 /**
  * Represents the distribution of daylight in 24-hours.
  * @author Kristian
@@ -12,15 +10,15 @@ public class DaylightPreset {
 	 */
 	private static final double TICKS_PER_DAY = 24000.0;
 	
+	/**
+	 * The number of entries in a compiled lookup table, including the final tick of the day.
+	 */
+	private static final int TABLE_SIZE = (int) TICKS_PER_DAY + 1;
+	
 	/**
 	 * The default daylight distribution.
 	 */
-	private static final DaylightPreset DEFAULT = new DaylightPreset(6, 1, 4, 1) {
-		public int toNormalTime(int ticks) {
-			// Optimize
-			return ticks;
-		}
-	};
+	private static final DaylightPreset DEFAULT = new DaylightPreset(6, 1, 4, 1);
 	
 	// Fractions
 	private final double day;
@@ -28,8 +26,15 @@ public class DaylightPreset {
 	private final double night;
 	private final double dawn;
 	
-	// Normalized version of the current preset
-	private transient DaylightPreset normalized;
+	// Normalized fractions, so equality never allocates
+	private final double normalDay;
+	private final double normalEvening;
+	private final double normalNight;
+	private final double normalDawn;
+	private final boolean defaultPreset;
+	
+	// Every tick in the altered day mapped to normal time
+	private transient volatile short[] table;
 	
 	/**
 	 * Retrieve the default preset used by Minecraft itself.
@@ -58,6 +63,15 @@ public class DaylightPreset {
 		this.evening = notNegative(evening, "evening");
 		this.night = notNegative(night, "night");
 		this.dawn = notNegative(dawn, "dawn");
+		
+		double sum = day + evening + night + dawn;
+		this.normalDay = day / sum;
+		this.normalEvening = evening / sum;
+		this.normalNight = night / sum;
+		this.normalDawn = dawn / sum;
+		
+		// The default preset itself is constructed before DEFAULT is assigned
+		this.defaultPreset = DEFAULT == null || hasSameFractions(DEFAULT);
 	}
 
 	/**
@@ -77,17 +91,20 @@ public class DaylightPreset {
 	 * @return The normalized preset.
 	 */
 	protected DaylightPreset normalize() {
-		// Memoize the preset
-		if (normalized == null) {
-			double sum = day + evening + night + dawn;
-			
-			// Calculate the normalized preset
-			normalized = new DaylightPreset(
-				day / sum, evening / sum, 
-				night / sum, dawn / sum
-			);
-		}
-		return normalized;
+		return new DaylightPreset(normalDay, normalEvening, normalNight, normalDawn);
+	}
+	
+	/**
+	 * Determine if the given preset has the same normalized fractions as this preset.
+	 * @param other - the other preset.
+	 * @return TRUE if it has, FALSE otherwise.
+	 */
+	private boolean hasSameFractions(DaylightPreset other) {
+		// Same semantics as Arrays.equals(double[], double[])
+		return Double.doubleToLongBits(normalDay) == Double.doubleToLongBits(other.normalDay) &&
+			   Double.doubleToLongBits(normalEvening) == Double.doubleToLongBits(other.normalEvening) &&
+			   Double.doubleToLongBits(normalNight) == Double.doubleToLongBits(other.normalNight) &&
+			   Double.doubleToLongBits(normalDawn) == Double.doubleToLongBits(other.normalDawn);
 	}
 	
 	/**
@@ -101,13 +118,84 @@ public class DaylightPreset {
 			throw new IllegalArgumentException("Ticks cannot be negative.");
 		if (ticks > TICKS_PER_DAY)
 			throw new IllegalArgumentException("Ticks cannot exceed the standard Minecraft day.");
+		return getTable()[ticks];
+	}
+	
+	/**
+	 * Determine how many ticks must pass in the altered day before the normal time has changed by a given amount.
+	 * @param ticks - the current time in the altered day.
+	 * @param threshold - the minimum change in normal time, in ticks.
+	 * @param forward - TRUE if the altered time is moving forward, FALSE if it is moving backwards.
+	 * @return The number of ticks in the altered day, at most a full day.
+	 */
+	public int getTicksUntilChange(int ticks, int threshold, boolean forward) {
+		short[] lookup = getTable();
+		int day = (int) TICKS_PER_DAY;
+		int start = lookup[ticks];
 		
+		for (int i = 1; i < day; i++) {
+			int next = ((forward ? ticks + i : ticks - i) % day + day) % day;
+			int difference = Math.abs(lookup[next] - start) % day;
+			
+			if (Math.min(difference, day - difference) >= threshold)
+				return i;
+		}
+		return day;
+	}
+	
+	/**
+	 * Retrieve the lookup table of every tick in the altered day, compiling it if necessary.
+	 * <p>
+	 * The table must not be modified.
+	 * @return The lookup table.
+	 */
+	short[] getTable() {
+		short[] result = table;
+		
+		// Races are harmless - every thread computes the same table
+		if (result == null) {
+			table = result = compile();
+		}
+		return result;
+	}
+	
+	/**
+	 * Compile the preset into a table that maps every tick in the altered day to normal time.
+	 * <p>
+	 * Every entry is less than or equal to 24000, so a short is sufficient.
+	 * @return The compiled table.
+	 */
+	private short[] compile() {
+		short[] result = new short[TABLE_SIZE];
+		
+		// The default distribution is simply the identity
+		if (isDefault()) {
+			for (int i = 0; i < result.length; i++) {
+				result[i] = (short) i;
+			}
+			return result;
+		}
+		
+		double[] modified = { normalDay, normalEvening, normalNight, normalDawn };
+		double[] standard = DEFAULT.normalize().toArray();
+		
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (short) computeNormalTime(i, modified, standard);
+		}
+		return result;
+	}
+	
+	/**
+	 * Calculate the equivalent time in a normal Minecraft world.
+	 * @param ticks - time in the altered day.
+	 * @param modified - the normalized fractions of this preset.
+	 * @param standard - the normalized fractions of the default preset.
+	 * @return Relative time in a normal Minecraft world.
+	 */
+	private static int computeNormalTime(int ticks, double[] modified, double[] standard) {
 		double value = ticks / TICKS_PER_DAY;
 		double aggregate = 0;
-		double[] modified = normalize().toArray();
-		double[] standard = defaultPreset().normalize().toArray();
 		
-		// Calculate the equivalent time in a normal Minecraft world
 		for (int i = 0; i < modified.length; i++) {
 			if (value > modified[i]) {
 				aggregate += standard[i];
@@ -117,7 +205,8 @@ public class DaylightPreset {
 				return (int) (aggregate * TICKS_PER_DAY);
 			}
 		}
-		throw new IllegalStateException("Cannot convert to normal time: " + ticks);
+		// Only reachable through rounding errors at the very end of the day
+		return (int) (aggregate * TICKS_PER_DAY);
 	}
 	
 	/**
@@ -165,7 +254,7 @@ public class DaylightPreset {
 	 * @return TRUE if it is, FALSE otherwise.
 	 */
 	public boolean isDefault() {
-		return DEFAULT.equals(this);
+		return defaultPreset;
 	}
 	
 	@Override
@@ -173,15 +262,25 @@ public class DaylightPreset {
 		if (obj == this)
 			return true;
 		if (obj instanceof DaylightPreset) {
-			DaylightPreset other = (DaylightPreset) obj;
-			return Arrays.equals(normalize().toArray(), other.normalize().toArray());
+			return hasSameFractions((DaylightPreset) obj);
 		}
 		return false;
 	}
 	
 	@Override
 	public int hashCode() {
-		return Arrays.hashCode(normalize().toArray());
+		// Same as Arrays.hashCode(double[]) of the normalized fractions
+		int result = 1;
+		result = 31 * result + hashDouble(normalDay);
+		result = 31 * result + hashDouble(normalEvening);
+		result = 31 * result + hashDouble(normalNight);
+		result = 31 * result + hashDouble(normalDawn);
+		return result;
+	}
+	
+	private static int hashDouble(double value) {
+		long bits = Double.doubleToLongBits(value);
+		return (int) (bits ^ (bits >>> 32));
 	}
 
 	@Override
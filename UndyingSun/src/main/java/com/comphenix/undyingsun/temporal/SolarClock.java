@@ -0,0 +1,341 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+package com.comphenix.undyingsun.temporal;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+import com.google.common.base.Objects;
+
+/**
+ * Represents a clock that follows the real sunrise and sunset at a given location.
+ * <p>
+ * Sunrise is mapped to morning, solar noon to noon, sunset to evening and solar midnight to midnight, 
+ * with the time in between interpolated linearly. The position of the sun is calculated with the NOAA 
+ * solar equations once per local day, and compiled into a table with an entry for every minute. 
+ * Evaluating the clock is then a table lookup, which is thread-safe and free of allocations.
+ * <p>
+ * The output only depends on the wall clock, so the elapsed ticks of the world are ignored. The clock 
+ * is reported as stopped, as the client would otherwise advance its own time a thousand times too fast.
+ * @author Kristian
+ */
+public class SolarClock extends Clock {
+	/**
+	 * The number of minutes in a real day.
+	 */
+	private static final int MINUTES_PER_DAY = 1440;
+	
+	/**
+	 * The number of milliseconds in a real minute.
+	 */
+	private static final long MILLISECONDS_PER_MINUTE = 60000L;
+	
+	/**
+	 * The number of milliseconds in a real day.
+	 */
+	private static final long MILLISECONDS_PER_DAY = MINUTES_PER_DAY * MILLISECONDS_PER_MINUTE;
+	
+	/**
+	 * The number of milliseconds in a game tick.
+	 */
+	private static final long MILLISECONDS_PER_TICK = 50;
+	
+	/**
+	 * The zenith of the sun at sunrise and sunset, including atmospheric refraction.
+	 */
+	private static final double SUNRISE_ZENITH = 90.833;
+	
+	/**
+	 * The Julian day of the Unix epoch.
+	 */
+	private static final double JULIAN_EPOCH = 2440587.5;
+	
+	/**
+	 * Represents the compiled table of a single local day.
+	 * @author Kristian
+	 */
+	private static class DayTable {
+		final long day;
+		
+		// The time in every minute of the day, without wrapping around
+		final int[] ticks;
+		
+		public DayTable(long day, int[] ticks) {
+			this.day = day;
+			this.ticks = ticks;
+		}
+	}
+	
+	private final double latitude;
+	private final double longitude;
+	private final TimeZone timeZone;
+	
+	// Replaced once per local day
+	private transient volatile DayTable table;
+	
+	/**
+	 * Construct a new solar clock.
+	 * @param latitude - the latitude of the location in degrees, positive towards north.
+	 * @param longitude - the longitude of the location in degrees, positive towards east.
+	 * @param timeZone - the time zone of the location.
+	 */
+	public SolarClock(double latitude, double longitude, TimeZone timeZone) {
+		super(DaylightPreset.defaultPreset(), TimeOfDay.MORNING, TickRate.STOPPED);
+		
+		if (Math.abs(latitude) > 90)
+			throw new IllegalArgumentException("Latitude must be within -90 and 90 degrees.");
+		if (Math.abs(longitude) > 180)
+			throw new IllegalArgumentException("Longitude must be within -180 and 180 degrees.");
+		if (timeZone == null)
+			throw new IllegalArgumentException("timeZone cannot be NULL.");
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.timeZone = (TimeZone) timeZone.clone();
+	}
+	
+	/**
+	 * Retrieve the latitude of the location.
+	 * @return The latitude in degrees.
+	 */
+	public double getLatitude() {
+		return latitude;
+	}
+	
+	/**
+	 * Retrieve the longitude of the location.
+	 * @return The longitude in degrees.
+	 */
+	public double getLongitude() {
+		return longitude;
+	}
+	
+	/**
+	 * Retrieve the time zone of the location.
+	 * @return The time zone.
+	 */
+	public TimeZone getTimeZone() {
+		return (TimeZone) timeZone.clone();
+	}
+	
+	@Override
+	public boolean isDefault() {
+		return false;
+	}
+	
+	@Override
+	public int get(long elapsedTicks) {
+		return getAt(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Retrieve the Minecraft time at the given instant.
+	 * @param millis - the instant, as measured by {@link System#currentTimeMillis()}.
+	 * @return The Minecraft time.
+	 */
+	public int getAt(long millis) {
+		long local = millis + timeZone.getOffset(millis);
+		int[] ticks = getTable(floorDiv(local, MILLISECONDS_PER_DAY)).ticks;
+		long remainder = floorMod(local, MILLISECONDS_PER_DAY);
+		int minute = (int) (remainder / MILLISECONDS_PER_MINUTE);
+		
+		// Interpolate within the current minute
+		long result = ticks[minute] + (ticks[minute + 1] - ticks[minute]) * 
+				(remainder % MILLISECONDS_PER_MINUTE) / MILLISECONDS_PER_MINUTE;
+		return (int) floorMod(result, TICKS_PER_DAY);
+	}
+	
+	@Override
+	public long getTicksUntilChange(long elapsedTicks, int threshold) {
+		long millis = System.currentTimeMillis();
+		long local = millis + timeZone.getOffset(millis);
+		int[] ticks = getTable(floorDiv(local, MILLISECONDS_PER_DAY)).ticks;
+		long remainder = floorMod(local, MILLISECONDS_PER_DAY);
+		int minute = (int) (remainder / MILLISECONDS_PER_MINUTE);
+		
+		// The output never decreases within a day
+		long target = ticks[minute] + (ticks[minute + 1] - ticks[minute]) * 
+				(remainder % MILLISECONDS_PER_MINUTE) / MILLISECONDS_PER_MINUTE + Math.max(1, threshold);
+		
+		for (int i = minute; i < MINUTES_PER_DAY; i++) {
+			if (ticks[i + 1] >= target) {
+				// Solve for the instant within this minute
+				long start = i * MILLISECONDS_PER_MINUTE;
+				long offset = (target - ticks[i]) * MILLISECONDS_PER_MINUTE / (ticks[i + 1] - ticks[i]);
+				return Math.max(1, (start + offset - remainder) / MILLISECONDS_PER_TICK);
+			}
+		}
+		// Check again when the next day is compiled
+		return Math.max(1, (MILLISECONDS_PER_DAY - remainder) / MILLISECONDS_PER_TICK);
+	}
+	
+	@Override
+	public Clock withPreset(DaylightPreset preset) {
+		return new Clock(preset, TimeOfDay.MORNING, TickRate.NORMAL);
+	}
+	
+	@Override
+	public Clock withOrigin(TimeOfDay origin) {
+		// Leaving the real time behind
+		return new Clock(getPreset(), origin, TickRate.NORMAL);
+	}
+	
+	/**
+	 * Retrieve the table of the given local day, compiling it if necessary.
+	 * @param day - the number of local days since the Unix epoch.
+	 * @return The table.
+	 */
+	private DayTable getTable(long day) {
+		DayTable result = table;
+		
+		// Races are harmless - every thread computes the same table
+		if (result == null || result.day != day) {
+			table = result = new DayTable(day, compile(day));
+		}
+		return result;
+	}
+	
+	/**
+	 * Compile the Minecraft time of every minute in the given local day.
+	 * <p>
+	 * The table has an additional entry for the first minute of the next day, and increases monotonically.
+	 * @param day - the number of local days since the Unix epoch.
+	 * @return The compiled table.
+	 */
+	private int[] compile(long day) {
+		// Measured at local noon
+		long noonMillis = day * MILLISECONDS_PER_DAY + MILLISECONDS_PER_DAY / 2;
+		double zoneMinutes = timeZone.getOffset(noonMillis - timeZone.getRawOffset()) / (double) MILLISECONDS_PER_MINUTE;
+		double julianDay = JULIAN_EPOCH + day + 0.5 - zoneMinutes / MINUTES_PER_DAY;
+		double julianCentury = (julianDay - 2451545) / 36525;
+		
+		// The NOAA solar calculations
+		double meanLongitude = (280.46646 + julianCentury * (36000.76983 + julianCentury * 0.0003032)) % 360;
+		double meanAnomaly = 357.52911 + julianCentury * (35999.05029 - 0.0001537 * julianCentury);
+		double eccentricity = 0.016708634 - julianCentury * (0.000042037 + 0.0000001267 * julianCentury);
+		double center = 
+				sin(meanAnomaly) * (1.914602 - julianCentury * (0.004817 + 0.000014 * julianCentury)) + 
+				sin(2 * meanAnomaly) * (0.019993 - 0.000101 * julianCentury) + 
+				sin(3 * meanAnomaly) * 0.000289;
+		double omega = 125.04 - 1934.136 * julianCentury;
+		double apparentLongitude = meanLongitude + center - 0.00569 - 0.00478 * sin(omega);
+		double meanObliquity = 23 + (26 + (21.448 - julianCentury * 
+				(46.815 + julianCentury * (0.00059 - julianCentury * 0.001813))) / 60) / 60;
+		double obliquity = meanObliquity + 0.00256 * cos(omega);
+		double declination = Math.toDegrees(Math.asin(sin(obliquity) * sin(apparentLongitude)));
+		
+		double y = Math.pow(Math.tan(Math.toRadians(obliquity / 2)), 2);
+		double equationOfTime = 4 * Math.toDegrees(
+				y * sin(2 * meanLongitude) - 
+				2 * eccentricity * sin(meanAnomaly) + 
+				4 * eccentricity * y * sin(meanAnomaly) * cos(2 * meanLongitude) - 
+				0.5 * y * y * sin(4 * meanLongitude) - 
+				1.25 * eccentricity * eccentricity * sin(2 * meanAnomaly));
+		
+		double cosHourAngle = (cos(SUNRISE_ZENITH) / (cos(latitude) * cos(declination)) - 
+				Math.tan(Math.toRadians(latitude)) * Math.tan(Math.toRadians(declination)));
+		double solarNoon = MINUTES_PER_DAY / 2 - 4 * longitude - equationOfTime + zoneMinutes;
+		
+		// Minutes from solar midnight to sunrise - the sun may never rise or set
+		double sunrise;
+		
+		if (cosHourAngle >= 1)
+			sunrise = MINUTES_PER_DAY / 2;
+		else if (cosHourAngle <= -1)
+			sunrise = 0;
+		else
+			sunrise = MINUTES_PER_DAY / 2 - 4 * Math.toDegrees(Math.acos(cosHourAngle));
+		return compileTable(solarNoon - MINUTES_PER_DAY / 2, sunrise);
+	}
+	
+	/**
+	 * Compile the table of a day from the time of solar midnight and sunrise.
+	 * @param midnight - minutes from local midnight to the preceding solar midnight.
+	 * @param sunrise - minutes from solar midnight to sunrise.
+	 * @return The compiled table.
+	 */
+	private static int[] compileTable(double midnight, double sunrise) {
+		int[] result = new int[MINUTES_PER_DAY + 1];
+		double half = MINUTES_PER_DAY / 2.0;
+		
+		// Polar day or night - the time stands still
+		if (sunrise <= 0 || sunrise >= half) {
+			Arrays.fill(result, sunrise <= 0 ? 6000 : 18000);
+			return result;
+		}
+		
+		for (int i = 0; i < result.length; i++) {
+			double elapsed = i - midnight;
+			long days = (long) Math.floor(elapsed / MINUTES_PER_DAY);
+			double minute = elapsed - days * MINUTES_PER_DAY;
+			double time;
+			
+			// Midnight, morning, noon, evening and midnight again
+			if (minute < sunrise) {
+				time = -6000 + 6000 * minute / sunrise;
+			} else if (minute < half) {
+				time = 6000 * (minute - sunrise) / (half - sunrise);
+			} else if (minute < MINUTES_PER_DAY - sunrise) {
+				time = 6000 + 6000 * (minute - half) / (half - sunrise);
+			} else {
+				time = 12000 + 6000 * (minute - MINUTES_PER_DAY + sunrise) / sunrise;
+			}
+			result[i] = (int) Math.round(time + days * TICKS_PER_DAY);
+		}
+		return result;
+	}
+	
+	private static double sin(double degrees) {
+		return Math.sin(Math.toRadians(degrees));
+	}
+	
+	private static double cos(double degrees) {
+		return Math.cos(Math.toRadians(degrees));
+	}
+	
+	private static long floorDiv(long value, long divisor) {
+		long result = value / divisor;
+		return (value % divisor < 0) ? result - 1 : result;
+	}
+	
+	private static long floorMod(long value, long divisor) {
+		long result = value % divisor;
+		return result < 0 ? result + divisor : result;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (obj != null && obj.getClass() == getClass()) {
+			SolarClock other = (SolarClock) obj;
+			return Double.doubleToLongBits(latitude) == Double.doubleToLongBits(other.latitude) &&
+				   Double.doubleToLongBits(longitude) == Double.doubleToLongBits(other.longitude) &&
+				   timeZone.getID().equals(other.timeZone.getID());
+		}
+		return false;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(latitude, longitude, timeZone.getID());
+	}
+	
+	@Override
+	public String toString() {
+		return "SolarClock [latitude=" + latitude + ", longitude=" + longitude + ", timeZone=" + timeZone.getID() + "]";
+	}
+}
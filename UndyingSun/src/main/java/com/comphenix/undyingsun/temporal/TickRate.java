@@ -0,0 +1,223 @@
+/*
+ *  UndyingSum - Bukkit server plugin that allows for decoupling the server and client clock.
+ *  Copyright (C) 2013 Kristian S. Stangeland
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the 
+ *  GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ *  See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with this program; 
+ *  if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 
+ *  02111-1307 USA
+ */
+
+package com.comphenix.undyingsun.temporal;
+
+/**
+ * Represents the speed of a clock as an exact fraction of clock ticks per game tick.
+ * <p>
+ * Clocks are evaluated with long arithmetic only, so their output never drifts or snaps back at the 
+ * end of a day, no matter how long the server has been running.
+ * @author Kristian
+ */
+public final class TickRate {
+	/**
+	 * The largest denominator used when converting from a floating point rate.
+	 */
+	public static final long MAX_DENOMINATOR = 10000;
+	
+	/**
+	 * A stopped clock.
+	 */
+	public static final TickRate STOPPED = new TickRate(0, 1);
+	
+	/**
+	 * The rate of a normal Minecraft clock.
+	 */
+	public static final TickRate NORMAL = new TickRate(1, 1);
+	
+	private final long numerator;
+	private final long denominator;
+	
+	private TickRate(long numerator, long denominator) {
+		this.numerator = numerator;
+		this.denominator = denominator;
+	}
+	
+	/**
+	 * Construct a tick rate from the given fraction.
+	 * @param numerator - the numerator.
+	 * @param denominator - the denominator, which must be positive.
+	 * @return The tick rate, in lowest terms.
+	 * @throws IllegalArgumentException If the rate is too large to be evaluated without overflow.
+	 */
+	public static TickRate of(long numerator, long denominator) {
+		if (denominator <= 0)
+			throw new IllegalArgumentException("denominator must be positive.");
+		long divisor = gcd(Math.abs(numerator), denominator);
+		
+		if (divisor > 1) {
+			numerator /= divisor;
+			denominator /= divisor;
+		}
+		if (Math.abs(numerator) > getMaxNumerator(denominator))
+			throw new IllegalArgumentException("Tick rate " + numerator + "/" + denominator + " is too large.");
+		return new TickRate(numerator, denominator);
+	}
+	
+	/**
+	 * Convert the given floating point rate to the nearest fraction with a denominator of at most {@link #MAX_DENOMINATOR}.
+	 * <p>
+	 * Rates such as 0.5 or 1/3.0 are converted exactly.
+	 * @param rate - the rate.
+	 * @return The tick rate.
+	 * @throws IllegalArgumentException If the rate is not finite, or too large.
+	 */
+	public static TickRate fromDouble(double rate) {
+		if (Double.isNaN(rate) || Double.isInfinite(rate))
+			throw new IllegalArgumentException("Tick rate must be finite: " + rate);
+		double value = Math.abs(rate);
+		
+		if (value > getMaxNumerator(1))
+			throw new IllegalArgumentException("Tick rate " + rate + " is too large.");
+		
+		// Leave room for the numerator
+		long maxDenominator = Math.min(MAX_DENOMINATOR, 
+				Math.max(1, (long) Math.sqrt(getMaxNumerator(1) / Math.max(1, value))));
+		
+		// Best rational approximation by continued fractions
+		long previousNumerator = 0, numerator = 1;
+		long previousDenominator = 1, denominator = 0;
+		double remainder = value;
+		
+		while (true) {
+			long term = (long) Math.floor(remainder);
+			long nextNumerator = term * numerator + previousNumerator;
+			long nextDenominator = term * denominator + previousDenominator;
+			
+			if (nextDenominator > maxDenominator)
+				break;
+			previousNumerator = numerator;
+			previousDenominator = denominator;
+			numerator = nextNumerator;
+			denominator = nextDenominator;
+			
+			double fraction = remainder - term;
+			
+			if (fraction < 1e-9 || Math.abs(value - numerator / (double) denominator) < 1e-12)
+				break;
+			remainder = 1 / fraction;
+		}
+		return of(rate < 0 ? -numerator : numerator, denominator);
+	}
+	
+	/**
+	 * Retrieve the largest numerator that can be evaluated with the given denominator without overflow.
+	 * @param denominator - the denominator.
+	 * @return The largest numerator.
+	 */
+	private static long getMaxNumerator(long denominator) {
+		return Long.MAX_VALUE / (Clock.TICKS_PER_DAY * denominator);
+	}
+	
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			long next = a % b;
+			a = b;
+			b = next;
+		}
+		return a;
+	}
+	
+	/**
+	 * Retrieve the numerator of the rate.
+	 * @return The numerator, negative if the clock runs backwards.
+	 */
+	public long getNumerator() {
+		return numerator;
+	}
+	
+	/**
+	 * Retrieve the denominator of the rate.
+	 * @return The denominator, always positive.
+	 */
+	public long getDenominator() {
+		return denominator;
+	}
+	
+	/**
+	 * Determine if this rate stops the clock.
+	 * @return TRUE if it does, FALSE otherwise.
+	 */
+	public boolean isStopped() {
+		return numerator == 0;
+	}
+	
+	/**
+	 * Retrieve the rate as a floating point number.
+	 * @return The rate.
+	 */
+	public double toDouble() {
+		return numerator / (double) denominator;
+	}
+	
+	/**
+	 * Retrieve the number of clock ticks that have passed after the given game ticks, modulo a day.
+	 * @param elapsedTicks - the number of game ticks.
+	 * @return The clock ticks into the current day, from 0 to 23999.
+	 */
+	public int getPhase(long elapsedTicks) {
+		return getPhase(numerator, denominator, elapsedTicks);
+	}
+	
+	/**
+	 * Retrieve the number of clock ticks that have passed after the given game ticks, modulo a day.
+	 * <p>
+	 * This allows rates to be stored as primitives.
+	 * @param numerator - the numerator of the rate.
+	 * @param denominator - the denominator of the rate.
+	 * @param elapsedTicks - the number of game ticks.
+	 * @return The clock ticks into the current day, from 0 to 23999.
+	 */
+	public static int getPhase(long numerator, long denominator, long elapsedTicks) {
+		// The phase repeats after this many game ticks
+		long cycle = Clock.TICKS_PER_DAY * denominator;
+		long reduced = elapsedTicks % cycle;
+		
+		if (reduced < 0)
+			reduced += cycle;
+		long product = reduced * numerator;
+		long ticks = product / denominator;
+		
+		// Round towards negative infinity
+		if (product < 0 && ticks * denominator != product)
+			ticks--;
+		ticks %= Clock.TICKS_PER_DAY;
+		return (int) (ticks < 0 ? ticks + Clock.TICKS_PER_DAY : ticks);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (obj instanceof TickRate) {
+			TickRate other = (TickRate) obj;
+			return numerator == other.numerator && denominator == other.denominator;
+		}
+		return false;
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int) (numerator ^ (numerator >>> 32)) * 31 + (int) (denominator ^ (denominator >>> 32));
+	}
+	
+	@Override
+	public String toString() {
+		return denominator == 1 ? Long.toString(numerator) : numerator + "/" + denominator;
+	}
+}